@@ -136,7 +136,7 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
 	
 	/*
 	 * Executes entire classification process:
-	 * 	Sample KMer analysis using KAnalyze
+	 * 	Sample KMer analysis using the in-process k-mer counter
 	 * 	Database KMer reading and sorting into folders.
 	 *  KMer matching between samples and database
 	 *  Results summary and output to GUI.
@@ -149,8 +149,6 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
 		String savingDir = prams [0]; 
 		String sampleFile = prams [1];
 		String kSize = prams [2];
-		String inputFormat = prams [3];
-		String kAnalyzeDir = prams [4];
 		String dbLibrary = prams [5];
 		String dbOption = prams [6];
 		String entropyThrshld = prams [7];
@@ -168,12 +166,12 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
 		
 		/*1st step: Counting k-mers from the sample file*/
 		String sampleKmersFile = savingDir+"SampleKmers_"+kSize;
-		String [] samplekmerCountingParms = {sampleFile, kSize,inputFormat, sampleKmersFile,kAnalyzeDir,entropyThrshld};
+		String [] samplekmerCountingParms = {sampleFile, kSize, sampleKmersFile, entropyThrshld};
 
-		// Count k-mers in sample using KAnalyze.
+		// Count k-mers in sample using the in-process k-mer counter.
 		// If this stage takes too long, an Error dialog pops up and the ClassificationWorker terminates.
 
-		// Executor Service with its own thread to run KAnalyze.
+		// Executor Service with its own thread to run k-mer counting.
 		final ExecutorService kmerCountingService = Executors.newSingleThreadExecutor();
 		// Variable to hold results once they are available (lambda function below can only use final variables)
 		KmersCounting kC = null;
@@ -190,7 +188,7 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
 			sampleClass.setkC(kC);
 		}
 		catch(final TimeoutException e) {
-			JOptionPane.showMessageDialog(null, "KAnalyze stage took too long",
+			JOptionPane.showMessageDialog(null, "K-mer counting stage took too long",
 					"Program Timeout", JOptionPane.ERROR_MESSAGE);
 			deleteTempFolder(savingDir);
 			return null;
@@ -218,7 +216,7 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
 		 textPanel.appendText(sampleInfo);
 		 
 		 /*2nd step: splitting files (sample k-mers and database k-mers) for matching */
-		 final int permsPower = 5; //default setting for the permutations used to split large files
+		 final int permsPower = 5; //the permutations used to split large files when the number of partitions cannot be chosen from the number of k-mers
 		 		 
          /* sample file splitting */
 		 String statement = sampleClass.sampleFileSplitting (savingDir,sampleKmersFile, "s", kSize, permsPower);
@@ -292,6 +290,7 @@ public class ClassificationWorker extends SwingWorker <VirusResultDatabase, Stri
             final Future<int[]> f = kmerMatchingService.submit(() -> {
                 final SampleKmersMatching fsKM = new SampleKmersMatching();
                 sampleClass.setKM(fsKM);
+                fsKM.useDatabase(finalDatabaseKmersFile, finalDbOption, permsPower);
                 final int[] fNumOfMatches = fsKM.searchForKmersMatches(savingDir, Integer.parseInt(kSize), permsPower,filename);
                 return fNumOfMatches;
             });
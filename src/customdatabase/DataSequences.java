@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import utilities.TaxonomySnapshot;
 
 /***
  * Filters out common sequences from downloaded virus data
@@ -30,10 +31,14 @@ public class DataSequences {
 		
 	private TreeMap<Integer,String>  virusNameMap; 
 	private TreeMap<Integer, String> virusRankMap;
+	private TaxonomySnapshot taxonomy; //compiled names, ranks and parents, used instead of the treemaps when available
 	
 	public DataSequences(String namesFile, String nodesFile){
-		createNamesMap(namesFile);		
-		createRankMap(nodesFile);
+		taxonomy = getTaxonomy(namesFile, nodesFile);
+		if (taxonomy == null) {
+			createNamesMap(namesFile);		
+			createRankMap(nodesFile);
+		}
 	}
 
 	public static void main(String[] args) {
@@ -282,7 +287,7 @@ public void printVirusInfo(String [] virusInfo, String fileName){
 		while (i.hasNext()) {
 			Map.Entry me =(Map.Entry)i.next();
 			int taxID  = (Integer)me.getKey();
-			String rank = (String)virusRankMap.get(taxID);
+			String rank = (taxonomy != null) ? taxonomy.getRank(taxID) : virusRankMap.get(taxID);
 			taxIdRankMap.put(taxID, rank);
 		}
 		
@@ -300,7 +305,7 @@ public void printVirusInfo(String [] virusInfo, String fileName){
 		while (i.hasNext()) {
 			Map.Entry me =(Map.Entry)i.next();
 			int taxID  = (Integer)me.getKey();
-			String name = (String)virusNameMap.get(taxID);
+			String name = (taxonomy != null) ? taxonomy.getName(taxID) : virusNameMap.get(taxID);
 			taxIDsNameMap.put(taxID, name);
 		}
 		return taxIDsNameMap;
@@ -315,6 +320,31 @@ public void printVirusInfo(String [] virusInfo, String fileName){
          return files;	 
   }
 	
+	/*returns the whole taxonomy compiled from the dmp files, it is saved in the folder of the dmp files 
+	 *and compiled again when they change. Returns null if it cannot be compiled.
+	 */
+	private TaxonomySnapshot getTaxonomy(String namesFile, String nodesFile) {
+		File names = new File(namesFile);
+		File nodes = new File(nodesFile);
+		File taxonomyFile = new File(names.getAbsoluteFile().getParentFile(), "taxonomy"+TaxonomySnapshot.EXTENSION);
+		try {
+			if (!taxonomyFile.exists() || taxonomyFile.lastModified() < Math.max(names.lastModified(), nodes.lastModified())) {
+				System.out.println("Compiling the taxonomy files to "+taxonomyFile+" ...");
+				try (BufferedReader namesReader = new BufferedReader(new FileReader(names));
+					BufferedReader nodesReader = new BufferedReader(new FileReader(nodes))) {
+					TaxonomySnapshot.compile(namesReader, nodesReader, null, taxonomyFile);
+				}
+			}
+			TaxonomySnapshot snapshot = TaxonomySnapshot.open(taxonomyFile);
+			System.out.println("Size of the taxonomy :"+snapshot.getNumTaxa());
+			return snapshot;
+		}
+		catch (IOException ex) {
+			System.out.println("Errors compiling the taxonomy files: "+ex.getMessage());
+			return null;
+		}
+	}
+	
 	/*Populates the global virusNameMap with all taxIDs (in names.dmp) and their scientific names
 	 * The key is the taxID and the value is its name
 	 */
@@ -456,8 +486,8 @@ public void printVirusInfo(String [] virusInfo, String fileName){
    * key: virus taxID, values: List of all taxIDs in the directory which are the virus taxID's ancestors
    */
   public TreeMap<Integer,ArrayList<Integer>> getParentsList(String nodesFile,String [] files, TreeMap<Integer,Integer> taxIDSeqMap,String parentFile){
-	        //create a treemap of all the virus parents
-			TreeMap<Integer,Integer> virusParentMap = createParentMap  (nodesFile);
+	        //create a treemap of all the virus parents, it is not needed with the compiled taxonomy
+			TreeMap<Integer,Integer> virusParentMap = (taxonomy != null) ? null : createParentMap  (nodesFile);
 			
 			TreeMap<Integer,ArrayList<Integer>> parentsIDList = new TreeMap<Integer,ArrayList<Integer>>();
 						
@@ -465,7 +495,7 @@ public void printVirusInfo(String [] virusInfo, String fileName){
 			int num =0; //to keep track of number of parents
 			for(int id : taxIDSeqMap.keySet()){
 				
-				ArrayList<Integer> parentsList = getFullLineage (id, virusParentMap);
+				ArrayList<Integer> parentsList = (taxonomy != null) ? taxonomy.getLineage(id) : getFullLineage (id, virusParentMap);
 				
 				//check the parents list is not empty
 				if(parentsList == null){
@@ -7,7 +7,11 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import utilities.PermutationFiles;
+import utilities.HostKmerIndex;
+import utilities.KmerDatabaseFile;
+import utilities.KmerPartitioner;
+import utilities.MphfKmerDatabase;
+import utilities.TaxonStatsFile;
 
 /***
  * Runs the build for the customised database
@@ -16,6 +20,9 @@ import utilities.PermutationFiles;
  */
 public class KmersDatabaseBuild{
 	
+	//directory of the host k-mers indexes kept between builds, hostIndex in the working directory by default
+	public static final String HOST_INDEX_PROPERTY_NAME = "discvr.hostIndexDir";
+	
 	KmersDatabaseBuild (String [] args){
 		build(args);
 	}
@@ -85,12 +92,14 @@ public class KmersDatabaseBuild{
 		  * The number of permutation files was decided upon after careful consideration of the size of the 
 		  * file (i.e number of k-mers to be uploaded to memory).
 		  * Host files are large in size and it is found that having a perm size of 5 which gives 1024 perms files is 
-		  * the best choice when dealing with the human genomes
+		  * the best choice when dealing with the human genomes. The files are ranges of k-mers with about
+		  * the same number of host k-mers rather than one file per prefix, and their number is chosen from the
+		  * number of host k-mers and the number of threads. The perm size is only used
+		  * when the host k-mers cannot be read.
 		  */
 		 int permSize=5;
 		 
 		 String workingdirectory = System.getProperty("user.dir");
-		 String kAnalyzeDir = workingdirectory+"/lib";
 		 
 		 String tempDir = workingdirectory+"/temp/"; //to hold all intermediate files
 		 createDir(tempDir);
@@ -103,19 +112,22 @@ public class KmersDatabaseBuild{
 		 
 		 /*step1:
 		  * Process Host files:
-		  * Count host k-mers
-		  * Split k-mers into perms files
+		  * Count host k-mers, or read them from the host index built by a previous build
+		  * Split the range of k-mers into partitions
 		  */
 		  
-		 String hostKmersOutputDir = tempDir+"hostKmers/";
-		 createDir(hostKmersOutputDir);
+		 String hostIndexDir = System.getProperty(HOST_INDEX_PROPERTY_NAME, workingdirectory+"/hostIndex/");
 		 
-		 String [] hostKmersParms = {args[1],args[3],tempDir,hostKmersOutputDir,kAnalyzeDir,""+permSize};
+		 String [] hostKmersParms = {args[1],args[3],tempDir,hostIndexDir,args[4],""+permSize};
 		 System.out.println("Step 1: Host K-mers Processing ...");	
-		 HostKmersCounting hKC = new  HostKmersCounting(hostKmersParms);
+		 HostKmersCounting hKC = null;
+		 try {
+			 hKC = new  HostKmersCounting(hostKmersParms);
+		 } catch (IOException | IllegalArgumentException e) {
+			 System.out.println("Host K-mers counting encountered some errors, the database is not built: "+e.getMessage());
+			 System.exit(1);
+		 }
 		 System.out.println("Finished Host k-mers Processing!");
-		
-		 deleteDirectory(new File(hostKmersOutputDir));
 	
 	     /*step2:
 		  * Process Virus files:
@@ -124,20 +136,30 @@ public class KmersDatabaseBuild{
 		  * sort virus k-mers alphabetically in perms files
 		  */
 		  
-		 String [] virusKmersParms = {args[0],args[3],tempDir,kAnalyzeDir,args[4],""+permSize,args[5],args[6]};
+		 String [] virusKmersParms = {args[0],args[3],tempDir,args[4],""+permSize,args[5],args[6]};
 		 System.out.println("Step 2: Virus K-mers Processing ...");	
-		 new VirusKmersCounting(virusKmersParms);
+		 try {
+			 new VirusKmersCounting(virusKmersParms);
+		 } catch (IOException e) {
+			 System.out.println("Errors processing the virus k-mers, the database is not built: "+e.getMessage());
+			 System.exit(1);
+		 }
 		 System.out.println("Finished Virus k-mers Processing!");
 		 
 		 /*step3:
 		  * Remove Host Genomes:
-		  * Identify Virus-specific k-mers; exist in the virus k-mers files but not in the host k-mers files		    
+		  * Identify Virus-specific k-mers; exist in the virus k-mers files but not in the host k-mers index		    
 		  */
-		 String [] perms =getPermsArray(permSize);
+		 KmerPartitioner partitioner =KmerPartitioner.read(tempDir, permSize);
 		 String tempFile = tempDir+"VirusSpecificDB_temp";
 		 
 		 System.out.println("Step 3: Identifying virus-specific k-mers ...");	
-		 new KmersMatching(tempFile,Integer.parseInt(args[3]), perms,tempDir);
+		 try (HostKmerIndex hostKmers = HostKmerIndex.open(hKC.getIndexFile())) {
+			 new KmersMatching(tempFile,Integer.parseInt(args[3]), partitioner,tempDir,hostKmers,Integer.parseInt(args[4]));
+		 } catch (IOException e) {
+			 System.out.println("Errors identifying the virus-specific k-mers, the database is not built: "+e.getMessage());
+			 System.exit(1);
+		 }
 		 
 		 System.out.println("Finished writing virus-specific k-mers database file!");
 		 
@@ -149,7 +171,15 @@ public class KmersDatabaseBuild{
          String virusSpecificKmersFile = workingdirectory+"/customisedDB/"+args[2]+"_"+args[3];
 		 printKmersNumOfTaxIDs (tempFile, virusSpecificKmersFile);
 		 
-		 /*step4:
+		 /*step5:
+		  * write the binary copy of the database, it is memory mapped during classification,
+		  * and the per taxID statistics of the specific k-mers.
+		  * The database indexed by a minimal perfect hash is also written with the property discvr.mphfDatabase=true
+		  */
+		 System.out.println("Writing the binary database file ...");
+		 printBinaryDatabase (virusSpecificKmersFile);
+		 
+		 /*step6:
 		  * Delete temp folder and its contents
                   */
 		 
@@ -218,6 +248,37 @@ public class KmersDatabaseBuild{
 		}
 	}
 	
+	//converts the text database into the binary database file (same name with .kdb extension)
+	private void printBinaryDatabase (String dbFile){
+		try(BufferedReader br = new BufferedReader (new FileReader(dbFile))){
+			KmerDatabaseFile.write(br, new File(dbFile+KmerDatabaseFile.EXTENSION));
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Errors writing the binary database file: "+e.getMessage());
+		}
+		printTaxonStats(dbFile);
+		if (Boolean.getBoolean(MphfKmerDatabase.PROPERTY_NAME)) {
+			printMphfDatabase(dbFile);
+		}
+	}
+	
+	//writes the database indexed by a minimal perfect hash (same name with .mphf extension)
+	private void printMphfDatabase (String dbFile){
+		try(KmerDatabaseFile db = KmerDatabaseFile.open(new File(dbFile+KmerDatabaseFile.EXTENSION))){
+			MphfKmerDatabase.write(db, new File(dbFile+MphfKmerDatabase.EXTENSION));
+		} catch (IOException e) {
+			System.out.println("Errors writing the hash database file: "+e.getMessage());
+		}
+	}
+	
+	//writes the number of specific k-mers and their total counts for each taxID (same name with .stats extension)
+	private void printTaxonStats (String dbFile){
+		try(BufferedReader br = new BufferedReader (new FileReader(dbFile))){
+			TaxonStatsFile.build(br).write(new File(dbFile+TaxonStatsFile.EXTENSION));
+		} catch (IOException e) {
+			System.out.println("Errors writing the database statistics file: "+e.getMessage());
+		}
+	}
+	
 	private void createDir(String dirPath){
 		File tmpDir = new File (dirPath);
 	    if(! tmpDir.exists()){
@@ -244,17 +305,4 @@ public class KmersDatabaseBuild{
 	    return(directory.delete());
 	}
 	
-private String[] getPermsArray(int permSize){
-		
-	    char set[] = {'A', 'C', 'G', 'T'};
-		
-		PermutationFiles PF = new PermutationFiles(permSize,set.length);
-		String [] perms = PF.getPermsArray();			
-	    PF.printAllKLength(set,permSize,perms); //Populate the permutations array
-	      
-	     return perms;		
-	}
-
-
-
 }
@@ -1,129 +1,141 @@
 package customdatabase;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.io.File;
 
+import utilities.HostKmerIndex;
+import utilities.KmerCodec;
+import utilities.KmerPartitioner;
+
 /*** 
  *Runs matching between host k-mers and virus k-mers, common k-mers are removed
  *Only k-mers that are virus-specific are kept.
+ *The sorted virus k-mers of each partition are merged with the sorted host k-mers of the same range in the
+ *host index (see HostKmerIndex), so a partition is matched in a single pass with constant memory and the
+ *partitions are matched in parallel.
  *
  *@author Maha Maabar 
  */
 public class KmersMatching {
 	
-	public KmersMatching(String fileName, int kSize, String[] permFiles,String dirName) {
-		searchForKmersMatches(fileName,kSize,permFiles,dirName);
+	public KmersMatching(String fileName, int kSize, KmerPartitioner partitioner, String dirName, HostKmerIndex hostKmers, int numThreads) throws IOException {
+		searchForKmersMatches(fileName,kSize,partitioner,dirName,hostKmers,numThreads);
 		
 	}
 
-  /*searches for virus-specific k-mers (i.e. exists in virus k-mers files but not in the host k-mers files
-   *Uses binary search because it is the fastest search algorithm and only carries searching between 
-   *corresponding perms files. 
+  /*searches for virus-specific k-mers (i.e. exists in virus k-mers files but not in the host k-mers)
+   *The partitions are matched on a pool of numThreads threads, each into its own file, and the files are
+   *appended to the output file in the order of the partitions so the output is sorted. The files are appended
+   *with FileChannel.transferTo, their lines are not read again.
    */
-  private void searchForKmersMatches (String fileName, int kmerLen, String [] permFiles, String outputDir) {
-	 try(PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))){
-		int numOfVirusSpecKmers =0; //adds counts of the virus-specific Kmers 
-		int numOfNonVirusSpecKmers =0; //adds counts of the non virus-specific kmers
-		
-		/*iterate through each perm file, upload the host file and search for each virus k-mers in the host
-		 * if found, it is non virus-specific k-mer
-		 * else, it is a virus-specific k-mer
-		 */
-		for(int i=0;i< permFiles.length;i++)  
-			{
-				//matches are done on the sorted virus k-mers
-				String virusFileName = outputDir+"vKmers_"+permFiles[i]+"_sorted";//get the virus file
-								
-				File f = new File(virusFileName); 
-				if(!f.exists()) //No need to carry search with the corresponding file from the host
-				{
-					System.out.println("The file "+virusFileName+" Does NOT Exists!");
-					continue;				
-				}			
-				
-				String hostFileName = outputDir+"hKmers_"+permFiles[i];	//get the corresponding host file
-				
-				File hF = new File(hostFileName);
-				// No host file matches the virus file so all k-mers in the virus file are virus-specific
-				if(!hF.exists()) {
-					try(BufferedReader bf= new BufferedReader(new FileReader(virusFileName))){
-						String kmerInstance ;	       
-					    while((kmerInstance = bf.readLine()) !=null){
-						    pw.println(kmerInstance);
-						    numOfVirusSpecKmers++;
-					    }
-					    bf.close();				    
-				     }catch(IOException io){
-				    	 io.printStackTrace();					
-				     }
-				}				
-				else{
-                                      
-					// hostFileName exists so a matching is carried out	
-					
-					//get a list of host k-mers
-					ArrayList<String> hostKmers = getHostKmersList(hostFileName,kmerLen);
-
-					/*Open the virus file and read it line by line to search for it in the host list
-					 * If there is no match found for the virus k-mer in the host list, then it is a virus-specific k-mer
-					 * The whole line (i.e. k-mer, its count and its taxID(s)) is written to the file
-					 * If there is a match, the k-mer is non-specific k-mer
-					 */	 		
-		             BufferedReader bf     = new BufferedReader( new FileReader(virusFileName));
-				    String    kmerInstance ;	
-				    while((kmerInstance = bf.readLine()) !=null) {
-				    	String kmer = kmerInstance.substring(0,kmerLen);
-						int index= Collections.binarySearch(hostKmers, kmer);
-					    if(index >=0) { //There is a match i.e. k-mer is non-virus-specific
-					    	numOfNonVirusSpecKmers++;					    	
-						 }else{   
-						       
-                                                     pw.println(kmerInstance);//keep the virus k-mer as it is
-						     numOfVirusSpecKmers++;
-						 } 
-					}//end-while
-					bf.close();
-				}//end-else
-			}//end-for iterating through all perms files
-			pw.close();
-				
-			System.out.println("*****************************************************************" );  		
-		  	System.out.println("There are "+numOfVirusSpecKmers+"  VIRUS-SPECIFIC kmers in the file." );
-		  	System.out.println("There are "+numOfNonVirusSpecKmers+" NON-VIRUS-SPECIFIC kmers in the file." );
-		  	System.out.println("*****************************************************************");
-		
-	   }catch(IOException e){
-		    e.printStackTrace();
-		}    
-  }
-				
-/*get a list of k-mers only from a file 
- * Note: Some files are really huge about 1.3G (33,629,222 kmers) so using BufferedReader to read the file 
- * is better than using FileChannel which reads chunks of file into memory 
- */
- private ArrayList<String> getHostKmersList (String file, int kmerLen){
-		ArrayList<String> hostKmers = new ArrayList<String>();
+  private void searchForKmersMatches (String fileName, int kmerLen, KmerPartitioner partitioner, String outputDir, HostKmerIndex hostKmers, int numThreads) throws IOException {
+	String [] permFiles = partitioner.getNames();
+	ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+	try(FileChannel out = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+		List<ForkJoinTask<long[]>> tasks = new ArrayList<ForkJoinTask<long[]>>();
+		for(int i=0;i< permFiles.length;i++) {
+			final int partition = i;
+			tasks.add(pool.submit(() -> matchPartition(partitioner, partition, kmerLen, outputDir, hostKmers)));
+		}
 		
-		try(BufferedReader bf= new BufferedReader(new FileReader(file))){
-			String line;
-			int index =0;
-			while((line=bf.readLine()) != null){
-				index++;
-				String kmer = line.substring(0, kmerLen);
-				hostKmers.add(kmer);
-			}
+		long numOfVirusSpecKmers =0; //adds counts of the virus-specific Kmers 
+		long numOfNonVirusSpecKmers =0; //adds counts of the non virus-specific kmers
+		for(int i=0;i< permFiles.length;i++) {
+			long [] numOfKmers = tasks.get(i).get();
+			numOfVirusSpecKmers += numOfKmers[0];
+			numOfNonVirusSpecKmers += numOfKmers[1];
 			
-		} catch (IOException e1) {
-			e1.printStackTrace();
+			File specificFile = new File(outputDir+"vSpecific_"+permFiles[i]);
+			if (!specificFile.exists()) {
+				continue;
+			}
+			try(FileChannel in = FileChannel.open(specificFile.toPath(), StandardOpenOption.READ)){
+				long size = in.size();
+				for (long position=0; position<size; ) {
+					position += in.transferTo(position, size-position, out);
+				}
+			}
+			specificFile.delete();
 		}
-		return hostKmers;
+			
+		System.out.println("*****************************************************************" );  		
+	  	System.out.println("There are "+numOfVirusSpecKmers+"  VIRUS-SPECIFIC kmers in the file." );
+	  	System.out.println("There are "+numOfNonVirusSpecKmers+" NON-VIRUS-SPECIFIC kmers in the file." );
+	  	System.out.println("*****************************************************************");
+	
+	}catch(ExecutionException e){
+		throw new IOException("Matching virus and host k-mers encountered some errors: "+e.getCause().getMessage(), e.getCause());
+	}catch(InterruptedException e){
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Matching virus and host k-mers is interrrupted");
+	}finally{
+		pool.shutdownNow();
+	}
+  }
+  
+  /*writes the virus-specific k-mers of a partition to the file vSpecific_<partition>, runs on the pool threads.
+   *The virus file and the host index are both sorted: the host k-mers are read from the first k-mer of the partition
+   *and are only passed over once. Returns the number of virus-specific and non virus-specific k-mers.
+   */
+  private long [] matchPartition(KmerPartitioner partitioner, int partition, int kmerLen, String outputDir, HostKmerIndex hostKmers) throws IOException {
+	String perm = partitioner.getName(partition);
+	long [] numOfKmers = new long [2];
+	//matches are done on the sorted virus k-mers
+	String virusFileName = outputDir+"vKmers_"+perm+"_sorted";//get the virus file
+	
+	File f = new File(virusFileName); 
+	if(!f.exists()) //No need to carry search with the corresponding host k-mers
+	{
+		System.out.println("The file "+virusFileName+" Does NOT Exists!");
+		return numOfKmers;				
 	}
 	
+	long numHostKmers = hostKmers.getNumKmers();
+	long hostIndex = hostKmers.lowerBound(partitioner.getFirstKmer(partition, kmerLen));
+	long hostKmer = (hostIndex < numHostKmers) ? hostKmers.getKmer(hostIndex) : Long.MAX_VALUE;
+	
+	/*read the virus records one by one and move on in the host k-mers to the first one that is not smaller
+	 * If it is not the virus k-mer, then it is a virus-specific k-mer
+	 * The whole record (i.e. k-mer, its count and its taxID(s)) is written to the file as a line
+	 * If there is a match, the k-mer is non-specific k-mer
+	 */
+	try(VirusKmersSorter.RecordReader virusKmers = new VirusKmersSorter.RecordReader(f);
+		PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(outputDir+"vSpecific_"+perm)))){
+		StringBuilder kmerInstance = new StringBuilder();
+	    while(virusKmers.next()) {
+	    	long kmer = virusKmers.kmer;
+	    	while (hostKmer < kmer) {
+	    		hostIndex++;
+	    		hostKmer = (hostIndex < numHostKmers) ? hostKmers.getKmer(hostIndex) : Long.MAX_VALUE;
+	    	}
+		    if(hostKmer == kmer) { //There is a match i.e. k-mer is non-virus-specific
+		    	numOfKmers[1]++;					    	
+			}else{   
+				//one line: kmer count taxID(s)
+				kmerInstance.setLength(0);
+				kmerInstance.append(KmerCodec.decode(kmer, kmerLen)).append('\t').append(virusKmers.count).append('\t');
+				for(int i=0; i<virusKmers.numTaxIDs; i++){
+					kmerInstance.append(virusKmers.taxIDs[i]).append(' ');
+				}
+			    pw.println(kmerInstance);
+			    numOfKmers[0]++;
+			} 
+		}//end-while
+	}
+	return numOfKmers;
+  }
+				
 	/*delete all files which starts with a specific string in a directory */
 	private void deleteAllFiles (String dirName, String fileN)
 	{
@@ -0,0 +1,378 @@
+package customdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import utilities.KmerCodec;
+
+/***
+ * Sorts a virus k-mers perms file within a memory budget and merges the records of the same k-mer: their
+ * counts are added and their taxIDs are written once each in increasing order.
+ * The perms files, the runs and the sorted files hold binary records: the packed k-mer (8 bytes), its count,
+ * its number of taxIDs and the taxIDs (4 bytes each), see putRecord and RecordReader.
+ * The records are read into runs that fit in the budget, the 2-bit packed k-mers of a run are sorted with an
+ * LSD radix sort (linear in the number of k-mers) and the merged run is written to a temporary binary file.
+ * The runs are then merged with a k-way merge, so a perms file larger than the heap is sorted in a few passes
+ * over the disk. A file that fits in a single run is sorted in memory without any temporary file.
+ *
+ */
+public class VirusKmersSorter {
+
+	private static final int RECORD_BYTES = 40;    //packed k-mer, count, taxIDs offset and the radix sort buffers
+	private static final int MAX_RUNS_MERGED = 64; //runs opened at the same time, more runs are merged in several passes
+	private static final int RADIX_BITS = 8;
+	private static final int RECORD_HEADER_BYTES = 16;   //packed k-mer, count and number of taxIDs of a binary record
+
+	private final int kSize;
+	private final long memoryBytes;
+
+	//receives the merged records in sorted order
+	private interface RecordWriter {
+		void write(long kmer, int count, int [] taxIDs, int numTaxIDs) throws IOException;
+	}
+
+	public VirusKmersSorter(int kSize, long memoryBytes) {
+		KmerCodec.checkKSize(kSize);
+		this.kSize = kSize;
+		this.memoryBytes = memoryBytes;
+	}
+
+	//size of a binary record with numTaxIDs taxIDs
+	public static int getRecordBytes(int numTaxIDs) {
+		return RECORD_HEADER_BYTES+4*numTaxIDs;
+	}
+
+	//puts a binary record in a buffer (e.g. the buffer of a partition, see PartitionWriter)
+	public static void putRecord(ByteBuffer buffer, long kmer, int count, int [] taxIDs, int numTaxIDs) {
+		buffer.putLong(kmer).putInt(count).putInt(numTaxIDs);
+		for (int i=0; i<numTaxIDs; i++) {
+			buffer.putInt(taxIDs[i]);
+		}
+	}
+
+	//writes the sorted and merged records of inFile to outFile, the runs are written next to inFile
+	public void sort(File inFile, File outFile) throws IOException {
+		int maxRecords = (int)Math.max(1024, Math.min(Integer.MAX_VALUE-8, memoryBytes/RECORD_BYTES));
+		//a record is at least a k-mer, a count and a taxID
+		Run run = new Run((int)Math.min(maxRecords, inFile.length()/getRecordBytes(1)+16), maxRecords);
+		List<File> runFiles = new ArrayList<File>();
+		try {
+			try (RecordReader in = new RecordReader(inFile)) {
+				while (in.next()) {
+					if (run.size == maxRecords || run.getBytes() >= memoryBytes) {
+						runFiles.add(writeRun(run, inFile));
+						run.clear();
+					}
+					run.add(in.kmer, in.count, in.taxIDs, in.numTaxIDs);
+				}
+			}
+
+			try (RunWriter out = new RunWriter(outFile)) {
+				if (runFiles.isEmpty()) {
+					//everything fits in memory
+					run.sortAndMerge(out);
+					return;
+				}
+				if (run.size > 0) {
+					runFiles.add(writeRun(run, inFile));
+				}
+				run = null;
+				//merge the runs in several passes when there are too many of them to open at once
+				while (runFiles.size() > MAX_RUNS_MERGED) {
+					List<File> merged = new ArrayList<File>(runFiles.subList(0, MAX_RUNS_MERGED));
+					runFiles.subList(0, MAX_RUNS_MERGED).clear();
+					File mergedFile = createRunFile(inFile);
+					try (RunWriter runWriter = new RunWriter(mergedFile)) {
+						mergeRuns(merged, runWriter);
+					}
+					deleteAll(merged);
+					runFiles.add(mergedFile);
+				}
+				mergeRuns(runFiles, out);
+			}
+		}
+		finally {
+			deleteAll(runFiles);
+		}
+	}
+
+	/************** Helper methods **************/
+
+	private File writeRun(Run run, File inFile) throws IOException {
+		File runFile = createRunFile(inFile);
+		try (RunWriter runWriter = new RunWriter(runFile)) {
+			run.sortAndMerge(runWriter);
+		}
+		return runFile;
+	}
+
+	private static File createRunFile(File inFile) throws IOException {
+		File dir = inFile.getAbsoluteFile().getParentFile();
+		return File.createTempFile(inFile.getName()+"_run", null, dir);
+	}
+
+	private static void deleteAll(List<File> files) {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	//k-way merge of sorted runs, the records of the same k-mer in several runs are merged
+	private static void mergeRuns(List<File> runFiles, RecordWriter out) throws IOException {
+		PriorityQueue<RecordReader> heads = new PriorityQueue<RecordReader>(Math.max(1, runFiles.size()),
+				(a, b) -> Long.compare(a.kmer, b.kmer));
+		try {
+			for (File runFile : runFiles) {
+				RecordReader reader = new RecordReader(runFile);
+				if (reader.next()) {
+					heads.add(reader);
+				}
+				else {
+					reader.close();
+				}
+			}
+			TaxIDMerger taxIDs = new TaxIDMerger();
+			while (!heads.isEmpty()) {
+				RecordReader reader = heads.poll();
+				long kmer = reader.kmer;
+				int count = 0;
+				taxIDs.clear();
+				while (true) {
+					count += reader.count;
+					taxIDs.add(reader.taxIDs, 0, reader.numTaxIDs);
+					if (reader.next()) {
+						heads.add(reader);
+					}
+					else {
+						reader.close();
+					}
+					if (heads.isEmpty() || heads.peek().kmer != kmer) {
+						break;
+					}
+					reader = heads.poll();
+				}
+				out.write(kmer, count, taxIDs.ids, taxIDs.sortUnique());
+			}
+		}
+		finally {
+			for (RecordReader reader : heads) {
+				reader.close();
+			}
+		}
+	}
+
+	/*LSD radix sort of the first n keys (of keyBits bits) together with their values, RADIX_BITS bits per pass.
+	 *A pass where all the keys have the same digit is skipped, e.g. the first bases of a perms file.
+	 */
+	static void radixSort(long [] keys, int [] values, int n, int keyBits) {
+		long [] keysBuf = new long [n];
+		int [] valuesBuf = new int [n];
+		int [] counts = new int [1 << RADIX_BITS];
+		final int digitMask = (1 << RADIX_BITS)-1;
+		long [] srcKeys = keys;
+		int [] srcValues = values;
+		for (int shift=0; shift<keyBits; shift+=RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (int i=0; i<n; i++) {
+				counts[(int)(srcKeys[i] >>> shift) & digitMask]++;
+			}
+			if (n == 0 || counts[(int)(srcKeys[0] >>> shift) & digitMask] == n) {
+				continue;
+			}
+			int start = 0;
+			for (int d=0; d<counts.length; d++) {
+				int num = counts[d];
+				counts[d] = start;
+				start += num;
+			}
+			long [] dstKeys = (srcKeys == keys) ? keysBuf : keys;
+			int [] dstValues = (srcValues == values) ? valuesBuf : values;
+			for (int i=0; i<n; i++) {
+				int pos = counts[(int)(srcKeys[i] >>> shift) & digitMask]++;
+				dstKeys[pos] = srcKeys[i];
+				dstValues[pos] = srcValues[i];
+			}
+			srcKeys = dstKeys;
+			srcValues = dstValues;
+		}
+		if (srcKeys != keys) {
+			System.arraycopy(srcKeys, 0, keys, 0, n);
+			System.arraycopy(srcValues, 0, values, 0, n);
+		}
+	}
+
+	//the records read in memory: packed k-mer, count and the range of the taxIDs of each record
+	private class Run {
+		long [] kmers;
+		int [] counts;
+		int [] taxIDStarts;    //the taxIDs of record i are from taxIDStarts[i] to taxIDStarts[i+1]
+		int [] taxIDs = new int [1024];
+		int size;
+		int numTaxIDs;
+		final int maxRecords;
+
+		Run(int capacity, int maxRecords) {
+			this.maxRecords = maxRecords;
+			kmers = new long [capacity];
+			counts = new int [capacity];
+			taxIDStarts = new int [capacity+1];
+		}
+
+		//memory used by the records read so far
+		long getBytes() {
+			return (long)RECORD_BYTES*size+4L*numTaxIDs;
+		}
+
+		void clear() {
+			size = 0;
+			numTaxIDs = 0;
+		}
+
+		void add(long kmer, int count, int [] ids, int num) {
+			if (size == kmers.length) {
+				int capacity = (int)Math.min(maxRecords, 2L*size);
+				kmers = Arrays.copyOf(kmers, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				taxIDStarts = Arrays.copyOf(taxIDStarts, capacity+1);
+			}
+			kmers[size] = kmer;
+			counts[size] = count;
+			taxIDStarts[size] = numTaxIDs;
+			if (numTaxIDs+num > taxIDs.length) {
+				taxIDs = Arrays.copyOf(taxIDs, Math.max(2*taxIDs.length, numTaxIDs+num));
+			}
+			System.arraycopy(ids, 0, taxIDs, numTaxIDs, num);
+			numTaxIDs += num;
+			size++;
+			taxIDStarts[size] = numTaxIDs;
+		}
+
+		//sorts the records by k-mer and writes them, the records of the same k-mer are merged
+		void sortAndMerge(RecordWriter out) throws IOException {
+			int [] order = new int [size];
+			for (int i=0; i<size; i++) {
+				order[i] = i;
+			}
+			long [] sorted = Arrays.copyOf(kmers, size);
+			radixSort(sorted, order, size, 2*kSize);
+
+			TaxIDMerger merged = new TaxIDMerger();
+			int i = 0;
+			while (i < size) {
+				long kmer = sorted[i];
+				int count = 0;
+				merged.clear();
+				for (; i<size && sorted[i]==kmer; i++) {
+					int record = order[i];
+					count += counts[record];
+					merged.add(taxIDs, taxIDStarts[record], taxIDStarts[record+1]-taxIDStarts[record]);
+				}
+				out.write(kmer, count, merged.ids, merged.sortUnique());
+			}
+		}
+	}
+
+	//the taxIDs of the records of a k-mer
+	private static class TaxIDMerger {
+		int [] ids = new int [16];
+		int size;
+
+		void clear() {
+			size = 0;
+		}
+
+		void add(int [] taxIDs, int from, int num) {
+			if (size+num > ids.length) {
+				ids = Arrays.copyOf(ids, Math.max(2*ids.length, size+num));
+			}
+			System.arraycopy(taxIDs, from, ids, size, num);
+			size += num;
+		}
+
+		//sorts the taxIDs and removes the duplicates, returns the number of taxIDs left
+		int sortUnique() {
+			Arrays.sort(ids, 0, size);
+			int num = 0;
+			for (int i=0; i<size; i++) {
+				if (num == 0 || ids[num-1] != ids[i]) {
+					ids[num++] = ids[i];
+				}
+			}
+			size = num;
+			return num;
+		}
+	}
+
+	//writes binary records to a file (a run or a sorted file)
+	private static class RunWriter implements RecordWriter, AutoCloseable {
+		private final DataOutputStream out;
+
+		RunWriter(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		}
+
+		@Override
+		public void write(long kmer, int count, int [] taxIDs, int numTaxIDs) throws IOException {
+			out.writeLong(kmer);
+			out.writeInt(count);
+			out.writeInt(numTaxIDs);
+			for (int i=0; i<numTaxIDs; i++) {
+				out.writeInt(taxIDs[i]);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	//reads the binary records of a perms file, a run or a sorted file
+	static class RecordReader implements AutoCloseable {
+		private final DataInputStream in;
+		long kmer;
+		int count;
+		int [] taxIDs = new int [16];
+		int numTaxIDs;
+
+		RecordReader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		//reads the next record, returns false at the end of the run
+		boolean next() throws IOException {
+			try {
+				kmer = in.readLong();
+			}
+			catch (EOFException e) {
+				return false;
+			}
+			count = in.readInt();
+			numTaxIDs = in.readInt();
+			if (numTaxIDs > taxIDs.length) {
+				taxIDs = new int [Math.max(numTaxIDs, 2*taxIDs.length)];
+			}
+			for (int i=0; i<numTaxIDs; i++) {
+				taxIDs[i] = in.readInt();
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package customdatabase;
+
+import java.util.Arrays;
+
+import utilities.KmerCodec;
+import utilities.LongIntHashMap;
+
+/***
+ * The k-mers of a batch of virus files: the count of each k-mer over all the files and the taxIDs of the files
+ * it comes from. The table is split into shards by the first bases of the k-mers and a shard is locked while
+ * the k-mers of a file are added to it, so the files of a batch are added from several threads at the same time.
+ * The taxIDs of a k-mer are kept in a linked list (the first taxID, then the next ones) in its shard.
+ *
+ */
+public class VirusKmersTable {
+
+	private static final int SHARD_BASES = 4;   //256 shards, one for each 4-letters prefix
+
+	private final int kSize;
+	private final int shardShift;
+	private final Shard [] shards;
+
+	//receives the k-mers of the table in sorted order with their count and their taxIDs in increasing order
+	public interface Visitor {
+		void visit(long kmer, int count, int [] taxIDs, int numTaxIDs);
+	}
+
+	public VirusKmersTable(int kSize) {
+		KmerCodec.checkKSize(kSize);
+		this.kSize = kSize;
+		int shardBases = Math.min(SHARD_BASES, kSize);
+		shardShift = 2*(kSize-shardBases);
+		shards = new Shard [1 << (2*shardBases)];
+		for (int i=0; i<shards.length; i++) {
+			shards[i] = new Shard();
+		}
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	//adds the k-mers of a file (packed k-mer -> count) labelled with the taxID of the file, can be called from several threads
+	public void addFile(long [] kmers, LongIntHashMap counts, int taxID) {
+		//sorted k-mers are grouped by shard
+		Arrays.sort(kmers);
+		int i = 0;
+		while (i < kmers.length) {
+			int s = (int)(kmers[i] >>> shardShift);
+			int j = i;
+			while (j < kmers.length && (int)(kmers[j] >>> shardShift) == s) {
+				j++;
+			}
+			Shard shard = shards[s];
+			synchronized (shard) {
+				for (int n=i; n<j; n++) {
+					shard.add(kmers[n], counts.get(kmers[n]), taxID);
+				}
+			}
+			i = j;
+		}
+	}
+
+	//number of distinct k-mers in the table
+	public long getNumKmers() {
+		long num = 0;
+		for (Shard shard : shards) {
+			num += shard.numSlots;
+		}
+		return num;
+	}
+
+	//passes all k-mers to the visitor in sorted order, the shards are released one by one so the table is empty afterwards
+	public void drainSorted(Visitor visitor) {
+		int [] taxIDs = new int [16];
+		for (int s=0; s<shards.length; s++) {
+			Shard shard = shards[s];
+			for (long kmer : shard.slots.sortedKeys()) {
+				int slot = shard.slots.get(kmer)-1;
+				int n = 0;
+				for (int link=shard.heads[slot]; link>=0; link=shard.nextLinks[link]) {
+					if (n == taxIDs.length) {
+						taxIDs = Arrays.copyOf(taxIDs, 2*n);
+					}
+					taxIDs[n++] = shard.linkTaxIDs[link];
+				}
+				//files of the same taxID added at the same time can leave the taxID twice in the list
+				Arrays.sort(taxIDs, 0, n);
+				int numTaxIDs = 0;
+				for (int i=0; i<n; i++) {
+					if (numTaxIDs == 0 || taxIDs[numTaxIDs-1] != taxIDs[i]) {
+						taxIDs[numTaxIDs++] = taxIDs[i];
+					}
+				}
+				visitor.visit(kmer, shard.counts[slot], taxIDs, numTaxIDs);
+			}
+			shards[s] = new Shard();
+		}
+	}
+
+	//the k-mers of a range of prefixes: slot of each k-mer (+1), count and first taxID link of each slot
+	private static class Shard {
+		final LongIntHashMap slots = new LongIntHashMap(64);
+		int [] counts = new int [64];
+		int [] heads = new int [64];
+		int numSlots;
+		int [] linkTaxIDs = new int [64];
+		int [] nextLinks = new int [64];
+		int numLinks;
+
+		void add(long kmer, int count, int taxID) {
+			int slot = slots.get(kmer)-1;
+			if (slot < 0) {
+				if (numSlots == counts.length) {
+					counts = Arrays.copyOf(counts, 2*numSlots);
+					heads = Arrays.copyOf(heads, 2*numSlots);
+				}
+				slot = numSlots++;
+				slots.put(kmer, slot+1);
+				counts[slot] = 0;
+				heads[slot] = -1;
+			}
+			counts[slot] += count;
+			//the taxID of the last file added with this k-mer is not added again
+			if (heads[slot] >= 0 && linkTaxIDs[heads[slot]] == taxID) {
+				return;
+			}
+			if (numLinks == linkTaxIDs.length) {
+				linkTaxIDs = Arrays.copyOf(linkTaxIDs, 2*numLinks);
+				nextLinks = Arrays.copyOf(nextLinks, 2*numLinks);
+			}
+			linkTaxIDs[numLinks] = taxID;
+			nextLinks[numLinks] = heads[slot];
+			heads[slot] = numLinks++;
+		}
+	}
+}
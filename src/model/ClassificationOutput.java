@@ -5,6 +5,8 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.net.URL;
 import controller.VirusResult;
+import utilities.TaxonStatsFile;
+import utilities.TaxonomySnapshot;
 /***
  * Creates treemaps from the classification output
  * 
@@ -28,9 +30,22 @@ public class ClassificationOutput {
     private int [] highestScoresShared;
     //key:K-mer (matched k-mer in the sample, value: its count in the sample
     private TreeMap<String, Integer> allMatchedKmers; 
+    private TaxonomySnapshot taxonomy; //compiled names and ranks, used instead of the treemaps when available
         
+  //constructor to set the virus names and ranks from the compiled taxonomy of the database
+  public ClassificationOutput(String dbOption, String databaseName) {
+	  taxonomy = SampleClassification.getTaxonomy(databaseName, dbOption);
+	  if (taxonomy == null) {
+		  setNamesAndRanks(dbOption);
+	  }
+  }
+  
   //constructor to set the virus names and ranks using appropriate dmps files
   public ClassificationOutput(String dbOption) {
+	  setNamesAndRanks(dbOption);
+  }
+  
+  private void setNamesAndRanks(String dbOption) {
     	String namesFile ="";
     	String nodesFile ="";
     	
@@ -132,6 +147,33 @@ public int [] setKmersTrees(String matchFileName) 	{
 	    	   
 }
 
+//populates the treemaps from the per taxon results collected while matching, without reading a match file
+public int [] setKmersTrees(TaxonAggregator taxa) 	{
+		this.totalCountsDistinctKmersMap = new TreeMap<Integer,Integer>(); 
+	    this.distinctKmerMap = new TreeMap<Integer,Integer>(); 
+	    this.sharedKmerMap = new TreeMap<Integer,Integer>();
+	    this.allMatchedKmers= new TreeMap<String,Integer>();
+	    
+	    for (int t=0; t<taxa.getNumTaxa(); t++) {
+	    	int taxID = taxa.getTaxID(t);
+	    	if (taxa.getDistinct(t) > 0) {
+	    		distinctKmerMap.put(taxID, taxa.getDistinct(t));
+	    		totalCountsDistinctKmersMap.put(taxID, (int)taxa.getTotalCounts(t));
+	    	}
+	    	if (taxa.getShared(t) > 0) {
+	    		sharedKmerMap.put(taxID, taxa.getShared(t));
+	    	}
+	    }
+	    for (int i=0; i<taxa.getNumMatched(); i++) {
+	    	allMatchedKmers.put(taxa.getMatchedKmerString(i), taxa.getMatchedCount(i));
+	    }
+	    
+	    int [] numOfKmers = new int [2];
+	    numOfKmers[0]= taxa.getNumOfSpecificKmers();
+	    numOfKmers[1]= taxa.getNumOfSharedKmers();
+	    return numOfKmers; 
+}
+
 //gets a list of k-mers and their counts from the allMatchedKmers Treemap
 public ArrayList<Kmers> getAllMatchedKmersList () {
 	ArrayList<Kmers> kmersList = new ArrayList<Kmers>();
@@ -161,6 +203,16 @@ public void setDBIDsMap(String dbFileName, String dbOption){
 	//<key:taxID,value: total number of distinct k-mers with that taxID>
 	this.DBdistinctKmerMap = new TreeMap<Integer,Integer>(); 
 	
+	//the statistics are computed once for a database and saved
+	TaxonStatsFile stats = SampleClassification.getDatabaseStats(dbFileName, dbOption);
+	if (stats != null) {
+		for (int i=0; i<stats.getNumTaxa(); i++) {
+			DBdistinctKmerMap.put(stats.getTaxID(i), stats.getNumKmers(i));
+			DBtotalCountsMap.put(stats.getTaxID(i), (int)stats.getTotalCounts(i));
+		}
+		return;
+	}
+	
 	BufferedReader bf;
 	try{
 		
@@ -201,6 +253,16 @@ public void setDBIDsMap(String dbFileName, String dbOption){
 	}
 }
 
+//scientific name of the taxID
+private String getVirusName(int taxID) {
+	return (taxonomy != null) ? taxonomy.getName(taxID) : virusNameMap.get(taxID);
+}
+
+//rank of the taxID on the taxonomy tree
+private String getVirusRank(int taxID) {
+	return (taxonomy != null) ? taxonomy.getRank(taxID) : virusRankMap.get(taxID);
+}
+
 //sets the virus names treemap from the appropriate dmp file
 public void createNamesMap (String namesDmpFile, String dbOption) {
 	//<key:taxID, value: its scientific name in the file>
@@ -268,11 +330,11 @@ public ArrayList<VirusResult> getVirusMapResults () {
 	 //Display elements
 	 while (i.hasNext()) {
 		 Map.Entry me =(Map.Entry)i.next();
-		 String name = virusNameMap.get(me.getKey());
+		 String name = getVirusName((Integer)me.getKey());
 		 int taxaID = (Integer)me.getKey();
 		 int distNum = (Integer) me.getValue();
 		 int totalNum = totalCountsDistinctKmersMap.get(me.getKey());		
-		 String rank = virusRankMap.get(me.getKey());
+		 String rank = getVirusRank((Integer)me.getKey());
 		 
 		 int dbTotNum= DBdistinctKmerMap.get(me.getKey()); 
 		 int dbDisNum=DBtotalCountsMap.get(me.getKey());
@@ -325,7 +387,7 @@ public String getSummaryMaps () {
 	     if(sharedKmerMap.get(taxID) != null){
 	    	 shared = sharedKmerMap.get(taxID);
 	     }
-	     String virusName = (String) virusNameMap.get(taxID);
+	     String virusName = getVirusName(taxID);
 	     if(virusName.length() > virusNameLen)
 	       	virusNameLen = virusName.length();
 	         
@@ -380,11 +442,11 @@ public String printVirusMapResults (){
 		 
 	while (i.hasNext()) {
 		Map.Entry me =(Map.Entry)i.next();
-		String name = virusNameMap.get(me.getKey());
+		String name = getVirusName((Integer)me.getKey());
 		int taxID = (Integer) me.getKey();
 		int distNum = (Integer) me.getValue();
 		int totalNum = totalCountsDistinctKmersMap.get(me.getKey());		
-		String rank = virusRankMap.get(me.getKey());
+		String rank = getVirusRank((Integer)me.getKey());
 			 
 		int dbTotNum= DBdistinctKmerMap.get(me.getKey()); 
 		int dbDisNum=DBtotalCountsMap.get(me.getKey());
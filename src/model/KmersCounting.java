@@ -1,20 +1,18 @@
 package model;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.nio.Buffer;
-import java.util.zip.GZIPInputStream;
 import utilities.EntropyFilter;
+import utilities.HyperLogLog;
+import utilities.KmerCodec;
+import utilities.KmerCounter;
+import utilities.MemoryBudget;
 
 /***
- * Uses KAnalyze tool to extract k-mers and their counts from a sample file.
+ * Extracts k-mers and their counts from a sample file using the in-process k-mer counter.
  * Removes low entropy and single copies k-mers from the output.
  * 
  * @author Maha Maabar
@@ -22,185 +20,159 @@ import utilities.EntropyFilter;
  */
 public class KmersCounting {
 
-	private int numOfReads;
+	/*set -Ddiscvr.bloomCounting=true to keep single copy k-mers in a Bloom filter instead of counting them,
+	 *the numbers of single copy and low entropy k-mers are then approximate
+	 */
+	public static final String BLOOM_PROPERTY_NAME = "discvr.bloomCounting";
+	private static final int BLOOM_BITS_PER_KMER = 16; //about 0.2% false positives with 4 hashes
+	private static final int TABLE_BYTES_PER_KMER = 24; //hash table slot (key and count) with free slots and resizing
+
+	private long numOfReads;
 	private int goodKmers;
-	private int badKmers;
+	private long badKmers;
 	private int lowEntropyKmers;
 	private long numKmers;
 	private long totalKmersCounts;
 	private long totalGoodKmers;
 
+	//parms={sampleFile,kSize,sampleKmersFile,entropyThreshold}
 	public KmersCounting (String [] parms) 	{
-		setNumOfReads(parms[0]);
-		
+		numOfReads =0;
 		numKmers =0;
 		totalKmersCounts =0;		
 		badKmers =0;
 		goodKmers =0;
 		totalGoodKmers =0;		
-		double entropyThreshold = Double.parseDouble(parms[5]);
+		double entropyThreshold = Double.parseDouble(parms[3]);
 		
+		/*the sample file is read once: the reads are counted and the k-mers are extracted
+		 *while the file is streamed into the k-mer counter
+		 */
+		KmerCounter counter = runKmersCounting(parms);
+		if (counter == null) {
+			return;
+		}
+		numOfReads = counter.getNumOfReads();
 			
-		/*denoise k-mers:
+		/*denoise k-mers while they are written out:
 		 * 1st: remove any k-mer in the file with count is 1 (single-copies k-mers)
 		 * 2nd: remove any k-mer in the file with entropy <= entropythreshold (low-entropy k-mers) 
 		 */
-		//Extract name of tempFiles directory from absolute path for use by KAnalyze shell call.
-		String tempFilesDir = new File(parms[3]).getParentFile().getName() + File.separator;
-		String [] tempParms = {parms[0],parms[1],parms[2],tempFilesDir+"TempKmers",parms[4]}; //TempKmers contains the results of KAnalyze
-			
-		runKmersCounting(tempParms);
-			
-		String outFile1 = tempFilesDir+"badKmers";
-		denoiseKmers(tempParms[3], outFile1, parms[3],entropyThreshold);
-				
-		//delete temporary files
-		deleteFiles(tempFilesDir,"badKmers");
-		deleteFiles(tempFilesDir,"TempKmers");
-		
+		denoiseKmers(counter, parms[2],entropyThreshold);
 	}
 	
-	//runs KAnalyze to count k-mers by calling external .jar in lib directory.
-   	private void runKmersCounting(String [] parms) {
+	//counts the reads and the k-mers of the sample file inside the JVM using all available cores
+   	private KmerCounter runKmersCounting(String [] parms) {
 		String inputFile = parms[0];
 		int kSize = Integer.parseInt(parms[1]);
-		String inputFormat = parms[2];
-		String outputFile = parms[3];
-		String kAnalyzeDir = parms[4]; // Path to kanalyze jar executable
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		long memoryBudget = MemoryBudget.getBytes();
 		
-		Runtime rt = Runtime.getRuntime();
-        Process proc; 
-        
-        // Create shell command for KAnalyze. Created as String array for compatibility with Unix shells.
-        String command2[] = {"java", "-jar", "-Xmx3G", kAnalyzeDir+File.separator+"kanalyze.jar", "count", "-k", kSize+"", "-o",
-				outputFile, "-f", inputFormat, inputFile, "-rcanonical"};
-
-
         try {
-        	String line;
-        	//proc = rt.exec(command2);
-			proc = rt.exec(command2);
-
-            int interVal = proc.waitFor();
-            if (interVal == 0){
-            }
-            else{
-              System.out.println("K-mer counting encountered some errors: "+interVal);
-            }   	
+        	long numKmers = getNumOfKmers(inputFile, kSize, numThreads);
+        	//k-mers of samples that do not fit in the memory budget are counted in disk buckets, without Bloom filters
+        	boolean spill = numKmers*TABLE_BYTES_PER_KMER > memoryBudget;
+        	long bloomBits = (Boolean.getBoolean(BLOOM_PROPERTY_NAME) && !spill) ? getBloomBits(numKmers) : 0;
+        	KmerCounter counter = new KmerCounter(kSize, numThreads, bloomBits);
+        	
+        	if (spill) {
+        		File tempDir = new File(parms[2]).getAbsoluteFile().getParentFile();
+        		counter.spillToDisk(tempDir, memoryBudget);
+        	}
+        	else if (bloomBits == 0) {
+        		counter.expectKmers(numKmers);
+        	}
+        	counter.countFile(inputFile);
+        	return counter;
         }
-        catch (Exception e)
+        catch (IOException | IllegalArgumentException e)
         {
-        	System.out.println("Error in running KAnalyze");
+        	System.out.println("K-mer counting encountered some errors: "+e.getMessage());
+        	System.out.println("Errors reading from "+inputFile);
         }
-        
+        return null;
 	}
    	
-    private void deleteFiles (String dirName, String fileN)
-   	{
-   		final File dir = new File(dirName);
-   		    final String[] allFiles = dir.list();
-   		    for (final String file : allFiles) {
-   		        if (file.startsWith(fileN)) {
-   		           new File(dirName + "/" + file).delete();
-   		        }
-   		    }
+   	/*size of the Bloom filters: a few bits for each distinct k-mer, using at most a quarter of the heap
+   	 */
+   	private long getBloomBits(long numKmers) {
+   		long maxBits = Runtime.getRuntime().maxMemory()/4*8;
+   		return Math.max(64, Math.min(numKmers*BLOOM_BITS_PER_KMER, maxBits));
+   	}
+   	
+   	/*number of distinct k-mers of the sample estimated with a HyperLogLog sketch of the first reads (see HyperLogLog.PREFIX_BYTES),
+   	 *so the sample is not read twice. The number of bases is used when the estimation fails
+   	 */
+   	private long getNumOfKmers(String inputFile, int kSize, int numThreads) {
+   		try {
+   			//a little more than the estimate to allow for its error
+   			return HyperLogLog.estimateKmers(new String [] {inputFile}, kSize, numThreads, HyperLogLog.PREFIX_BYTES)/50*51+16;
+   		}
+   		catch (IOException e) {
+   			System.out.println("The number of k-mers could not be estimated: "+e.getMessage());
+   			return getNumOfBases(inputFile);
+   		}
+   	}
+   	
+   	//rough upper bound of the number of bases (and distinct k-mers) from the size of the file
+   	private long getNumOfBases(String inputFile) {
+   		long bases = new File(inputFile).length();
+   		if (inputFile.endsWith(".gz")) {
+   			bases *= 4;
+   		}
+   		return bases;
    	}
 	
-    //counts the number of reads in the file
-	private void setNumOfReads(String file){
-		//open the input file and counts the headers
-		//fasta, header starts with >
-		//fastq, header starts with @
-		//fastqgz, zipped file starts with @ 	
-		
-		BufferedReader r;		
-        try {
-        	if(file.endsWith(".gz")) {//reading a compressed file
-    			final int DEFAULT_BUFFER_SIZE=5096;
-    			r=new BufferedReader(new InputStreamReader(new GZIPInputStream(
-    			  new FileInputStream(file),DEFAULT_BUFFER_SIZE)),DEFAULT_BUFFER_SIZE);
-    		}    		
-    		else {
-    			r= new BufferedReader(new FileReader(file));
-    		}
-        	 numOfReads =1;
-        	         	 			 
-        	 String firstLine= r.readLine();   //get the first character from the header
-        	 String headerPrefix = firstLine.substring(0,1).trim();
-			 	
-			 String hostLine=""; 				
-			 while((hostLine = r.readLine()) != null) {
-				 if(hostLine.length()>headerPrefix.length()  && 
-					(hostLine.substring(0,1)).equals(headerPrefix)){
-						numOfReads++;	
-				} 	
-              }
-			  r.close();		
-		 } 
-		 catch (IOException ex)
-	     {
-	     	ex.printStackTrace();
-	    	System.out.println("Errors reading from "+file);	   
-	     }
-		
-	}
-	
-   //opens the k-mers output file and prints the k-mers with count > 1 and whose tri-nucleotide entropy > threshold
-   //to the output file
-   private void denoiseKmers(String inFile, String outFile1, String outFile2, double threshold){
-	   int bases = 3; // bases to use for the entropy i.e. di- or tri-nucleotide
-	   EntropyFilter ef = new EntropyFilter();
+   //goes through the counted k-mers in sorted order and prints the k-mers with count > 1 and whose 
+   //tri-nucleotide entropy > threshold to the output file. Single copies k-mers are only counted.
+   private void denoiseKmers(KmerCounter counter, String outFile, double threshold){
+	   int kSize = counter.getKSize();
+	   EntropyFilter ef = new EntropyFilter(kSize); //tri-nucleotide entropy of packed k-mers
 			
 	   lowEntropyKmers =0;
 	   	
-	   try(BufferedReader kmerFile  = new BufferedReader(new FileReader(inFile));
-		   PrintWriter pw1 =  new PrintWriter(new BufferedWriter(new FileWriter(outFile1))); 
-		   PrintWriter pw2 =  new PrintWriter(new BufferedWriter(new FileWriter(outFile2)));){
+	   try(PrintWriter pw =  new PrintWriter(new BufferedWriter(new FileWriter(outFile)))){
 		   
-		   String kmerLine=""; 				
-				
-			while((kmerLine = kmerFile.readLine()) != null)	{
-				String [] words =kmerLine.split("\t");
-				String kmer= words[0];
-				int count = Integer.parseInt(words[1]);
+		   counter.drainSorted((packedKmer, count) -> {
 				numKmers++;	
 				totalKmersCounts += count ;
 					
 				if (count ==1){
-					pw1.println(kmerLine);
 					badKmers++;
 				}
 				else { //if its count > 1 and its entropy is > threshold
-					double entropy = ef.calculateShannonEntropy(kmer,bases);
+					double entropy = ef.calculateShannonEntropy(packedKmer);
 					if(entropy < threshold){
 						lowEntropyKmers++;						
 					}	
 					else{	//count k-mers with entropy >threshold
-						pw2.println(kmerLine);							
+						pw.println(KmerCodec.decode(packedKmer, kSize)+"\t"+count);							
 						//count k-mers with count >1
 						goodKmers++;
 						totalGoodKmers += count;							
 					}
 				}
-			 }
+			 });
 				
-			kmerFile.close();	
-			pw1.close();
-			pw2.close();			
+			//single copies k-mers kept in the Bloom filter were not counted one by one
+			long skipped = counter.getNumSkippedSingletons();
+			badKmers += skipped;
+			numKmers += skipped;
+			totalKmersCounts += skipped;
 		  }
 		  catch (IOException ex)  {
-		    	System.out.println("Errors reading from "+inFile);	   
+		    	System.out.println("Errors writing to "+outFile);	   
 		  }
 	}
 	
-	public int getNumOfReads()
+	public long getNumOfReads()
 	{
 		return numOfReads;
 	}	
     public int getGoodKmers() {
 		return goodKmers;
 	}
-	public int getBadKmers() {
+	public long getBadKmers() {
 		return badKmers;
 	}	
     public long getNumKmers() {
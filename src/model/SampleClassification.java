@@ -1,17 +1,29 @@
 package model;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.TreeMap;
+import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import utilities.KmerDatabaseFile;
+import utilities.KmerPartitioner;
+import utilities.MphfKmerDatabase;
 import utilities.PermutationFiles;
+import utilities.PrefixIndex;
+import utilities.ResidentKmerIndex;
+import utilities.TaxonStatsFile;
+import utilities.TaxonomySnapshot;
 import controller.VirusResult;
 
 /***
@@ -26,7 +38,17 @@ public class SampleClassification {
 	public static final String DIR_PROPERTY_NAME = "discvrJAR.rootDir";
 	public static final String currentDir = System.getProperty("user.dir");
 	
+	public static final String DB_CACHE_DIR = "dbCache"; //binary copies of the built-in databases
+	public static final String RESIDENT_INDEX_PROPERTY_NAME = "discvr.residentIndex"; //keeps the database k-mers in memory
+	
 	private static SampleClassification sc;
+	private static KmerDatabaseFile binaryDB; //the last binary database that was opened
+	private static long binaryDBModified;     //modification time of the binary database file when it was opened
+	private static TaxonomySnapshot taxonomy; //the taxonomy of the last database that was used
+	private static ResidentKmerIndex residentIndex; //the database k-mers of the last database, kept between samples
+	private static KmerDatabaseFile residentIndexDB; //the binary database the resident index was built from
+	private static MphfKmerDatabase mphfDB;         //the last minimal perfect hash database that was opened
+	private static long mphfDBModified;             //modification time of the hash database file when it was opened
 	private KmersCounting kC;
 	private SampleKmersMatching kM;	
 	private ArrayList<VirusResult> virusResults;	
@@ -45,25 +67,45 @@ public class SampleClassification {
 		classifySample(prams);
 	}
 		
-	//split sample k-mers into smaller files according to a certain permutation
+	/*split sample k-mers into smaller files: partitions with about the same number of sample k-mers, their number
+	 *depends on the number of sample k-mers and the memory budget (4^permsPower partitions when the k-mers cannot be read).
+	 *The partitions are saved in the savingDir to split the database k-mers in the same way
+	 */
 	public String sampleFileSplitting (String savingDir, String kmersFile, String fileType, String kSize, int permsPower){
-		char set[] = {'A', 'C', 'G', 'T'};
+		KmerPartitioner partitioner;
+		try {
+			partitioner = KmerPartitioner.balanced(kmersFile, SampleKmersMatching.KMER_BYTES, Runtime.getRuntime().availableProcessors());
+			partitioner.write(new File(savingDir, KmerPartitioner.FILE_NAME));
+		}
+		catch (IOException e) {
+			System.out.println("Errors reading the sample k-mers, they are split by their first bases: "+e.getMessage());
+			partitioner = KmerPartitioner.uniform(permsPower);
+			new File(savingDir, KmerPartitioner.FILE_NAME).delete();
+		}
 		
-		PermutationFiles PF = new PermutationFiles(permsPower,set.length);
-		String [] perms = PF.getPermsArray();			
-        PF.printAllKLength(set,permsPower,perms); //Populate the permutations array
-      	
-        return PF.printsToSamplePermsFiles(kmersFile,savingDir, fileType, permsPower, perms);       
+        return PermutationFiles.printsToSamplePermsFiles(kmersFile,savingDir, fileType, partitioner);       
 	}
 	
-	//split db k-mers into smaller files according to a certain permutation	
+	//split db k-mers into smaller files with the partitions of the sample k-mers
 	public String dbFileSplitting (String kmersFile, String fileNamePrefix, String dbOption, String type,int permsPower) {
-			char set[] = {'A', 'C', 'G', 'T'};
-			PermutationFiles PF = new PermutationFiles(permsPower,set.length);
-			String [] perms = PF.getPermsArray();
-	        PF.printAllKLength(set,permsPower,perms); //Populate the permutations array
-	        
-	        return PF.printsToDbPermsFiles(kmersFile,fileNamePrefix,  type, dbOption,permsPower, perms);
+			//a binary database is searched directly and does not need to be split
+			KmerDatabaseFile db = getBinaryDatabase(kmersFile, dbOption);
+			if (db != null) {
+				return "======================================================================\n"
+					+"There are ("+String.format("%,d",db.getNumKmers())+") distinct k-mers in the database.\n"
+					+"The total number of their counts is ("+String.format("%,d",db.getTotalCounts())+")\n\n ";
+			}
+			//a text database with a prefix index is read straight from the database file
+			PrefixIndex index = getDatabaseIndex(kmersFile, dbOption, KmerPartitioner.PREFIX_LEN);
+			if (index != null) {
+				return "======================================================================\n"
+					+"There are ("+String.format("%,d",index.getNumKmers())+") distinct k-mers in the database.\n"
+					+"The total number of their counts is ("+String.format("%,d",index.getTotalCounts())+")\n\n ";
+			}
+			
+			//the same partitions as the sample k-mers, saved in the same directory as the split files
+			KmerPartitioner partitioner = KmerPartitioner.read(new File(fileNamePrefix).getParent(), permsPower);
+	        return PermutationFiles.printsToDbPermsFiles(kmersFile,fileNamePrefix,  type, dbOption, partitioner);
 	       
 	}
 	
@@ -132,6 +174,252 @@ public String getSummaryText(){
 	      }
 	}
 
+/*returns the binary version of a database, it is created from the text database the first time
+ *(in the dbCache folder for the built-in databases and next to the database file for customised ones).
+ *Returns null if the binary database cannot be created, then the text database is used.
+ */
+public static synchronized KmerDatabaseFile getBinaryDatabase(String databaseName, String dbOption) {
+	try {
+		File binaryFile = getDatabaseFile(databaseName, dbOption, KmerDatabaseFile.EXTENSION);
+		if (binaryFile == null) {
+			return null;
+		}
+		long textModified = getTextModified(databaseName, dbOption);
+		
+		//a binary database written again (e.g. a customised database built again) is opened again
+		if (binaryDB != null && binaryDB.getFile().equals(binaryFile) && binaryFile.lastModified() == binaryDBModified
+				&& binaryFile.lastModified() >= textModified) {
+			return binaryDB;
+		}
+		if (!binaryFile.exists() || binaryFile.lastModified() < textModified) {
+			System.out.println("Creating the binary database file "+binaryFile+" ...");
+			try (BufferedReader in = openTextDatabase(databaseName, dbOption)) {
+				KmerDatabaseFile.write(in, binaryFile);
+			}
+		}
+		if (binaryDB != null) { //the mapped file of another database is dropped first, it is unmapped by the garbage collector
+			binaryDB.close();
+			binaryDB = null;
+		}
+		binaryDBModified = binaryFile.lastModified();
+		binaryDB = KmerDatabaseFile.open(binaryFile);
+		return binaryDB;
+	}
+	catch (IOException | IllegalArgumentException e) {
+		System.out.println("Using the text database, the binary database is not available: "+e.getMessage());
+		return null;
+	}
+}
+
+/*returns the hash table of the database k-mers kept outside the heap, it is built from the binary database
+ *the first time and kept for the next samples classified with the same database. Returns null if it is
+ *not enabled (property discvr.residentIndex=true) or cannot be built.
+ */
+public static synchronized ResidentKmerIndex getResidentIndex(String databaseName, String dbOption) {
+	if (!Boolean.getBoolean(RESIDENT_INDEX_PROPERTY_NAME)) {
+		return null;
+	}
+	KmerDatabaseFile db = getBinaryDatabase(databaseName, dbOption);
+	if (db == null) {
+		return null;
+	}
+	//a database rebuilt at the same path is opened again by getBinaryDatabase, so it is another KmerDatabaseFile
+	if (residentIndex != null && db == residentIndexDB) {
+		return residentIndex;
+	}
+	//the table of another database is dropped before building the new one, its memory is freed by the garbage collector
+	residentIndex = null;
+	residentIndexDB = null;
+	try {
+		System.out.println("Loading the database k-mers in memory ...");
+		residentIndex = ResidentKmerIndex.build(db);
+		residentIndexDB = db;
+		return residentIndex;
+	}
+	catch (OutOfMemoryError e) {
+		System.out.println("Not enough memory to keep the database k-mers in memory, the binary database is searched.");
+		return null;
+	}
+}
+
+/*returns the database indexed by a minimal perfect hash function (next to the database file or in the dbCache folder),
+ *it is built from the binary database when it does not exist or is older than the database.
+ *Returns null if it is not enabled (property discvr.mphfDatabase=true) or cannot be built.
+ */
+public static synchronized MphfKmerDatabase getMphfDatabase(String databaseName, String dbOption) {
+	if (!Boolean.getBoolean(MphfKmerDatabase.PROPERTY_NAME)) {
+		return null;
+	}
+	try {
+		File mphfFile = getDatabaseFile(databaseName, dbOption, MphfKmerDatabase.EXTENSION);
+		if (mphfFile == null) {
+			return null;
+		}
+		long textModified = getTextModified(databaseName, dbOption);
+		if (mphfDB != null && mphfDB.getFile().equals(mphfFile) && mphfFile.lastModified() == mphfDBModified
+				&& mphfFile.lastModified() >= textModified) {
+			return mphfDB;
+		}
+		if (!mphfFile.exists() || mphfFile.lastModified() < textModified) {
+			KmerDatabaseFile db = getBinaryDatabase(databaseName, dbOption);
+			if (db == null) {
+				return null;
+			}
+			System.out.println("Creating the hash database file "+mphfFile+" ...");
+			MphfKmerDatabase.write(db, mphfFile);
+		}
+		if (mphfDB != null) { //the mapped file of another database is dropped first, it is unmapped by the garbage collector
+			mphfDB.close();
+			mphfDB = null;
+		}
+		mphfDBModified = mphfFile.lastModified();
+		mphfDB = MphfKmerDatabase.open(mphfFile);
+		return mphfDB;
+	}
+	catch (IOException e) {
+		System.out.println("The hash database is not available: "+e.getMessage());
+		return null;
+	}
+}
+
+/*returns the per taxID statistics of the specific k-mers of the database, read from the statistics file
+ *(next to the database file or in the dbCache folder for the built-in databases). The file is created from
+ *the binary database, or the text database, when it does not exist or is older than the database.
+ *Returns null if the statistics are not available, then they are computed from the text database.
+ */
+public static synchronized TaxonStatsFile getDatabaseStats(String databaseName, String dbOption) {
+	try {
+		File statsFile = getDatabaseFile(databaseName, dbOption, TaxonStatsFile.EXTENSION);
+		if (statsFile == null) {
+			return null;
+		}
+		TaxonStatsFile stats = TaxonStatsFile.read(statsFile, getTextModified(databaseName, dbOption));
+		if (stats == null) {
+			KmerDatabaseFile db = getBinaryDatabase(databaseName, dbOption);
+			if (db != null) {
+				stats = TaxonStatsFile.build(db);
+			}
+			else {
+				try (BufferedReader in = openTextDatabase(databaseName, dbOption)) {
+					stats = TaxonStatsFile.build(in);
+				}
+			}
+			stats.write(statsFile);
+		}
+		return stats;
+	}
+	catch (IOException e) {
+		System.out.println("The database statistics are not available: "+e.getMessage());
+		return null;
+	}
+}
+
+/*returns the taxonomy (names, ranks and parents) of the taxIDs of the database, compiled from the names.dmp
+ *and nodes.dmp files the first time and saved next to the database (in the dbCache folder for the built-in
+ *databases). It is compiled again when the database or the dmp files change.
+ *Returns null if it is not available, then the dmp files are read.
+ */
+public static synchronized TaxonomySnapshot getTaxonomy(String databaseName, String dbOption) {
+	try {
+		File taxonomyFile = getDatabaseFile(databaseName, dbOption, TaxonomySnapshot.EXTENSION);
+		if (taxonomyFile == null) {
+			return null;
+		}
+		String namesFile = "names.dmp";
+		String nodesFile = "nodes.dmp";
+		if (dbOption.equals("customisedDB")) {
+			String actualPath = System.getProperty(DIR_PROPERTY_NAME, currentDir);
+			namesFile = actualPath+"/customisedDB/names.dmp";
+			nodesFile = actualPath+"/customisedDB/nodes.dmp";
+		}
+		long modified = Math.max(getTextModified(databaseName, dbOption),
+			Math.max(getTextModified(namesFile, dbOption), getTextModified(nodesFile, dbOption)));
+		
+		if (taxonomy != null && taxonomy.getFile().equals(taxonomyFile) && taxonomyFile.lastModified() >= modified) {
+			return taxonomy;
+		}
+		if (!taxonomyFile.exists() || taxonomyFile.lastModified() < modified) {
+			//only the taxIDs with specific k-mers in the database are looked up
+			TaxonStatsFile stats = getDatabaseStats(databaseName, dbOption);
+			if (stats == null) {
+				return null;
+			}
+			int [] taxIDs = new int [stats.getNumTaxa()];
+			for (int i=0; i<taxIDs.length; i++) {
+				taxIDs[i] = stats.getTaxID(i);
+			}
+			try (BufferedReader names = openTextDatabase(namesFile, dbOption);
+				BufferedReader nodes = openTextDatabase(nodesFile, dbOption)) {
+				TaxonomySnapshot.compile(names, nodes, taxIDs, taxonomyFile);
+			}
+		}
+		taxonomy = TaxonomySnapshot.open(taxonomyFile);
+		return taxonomy;
+	}
+	catch (IOException e) {
+		System.out.println("Reading the taxonomy files, the compiled taxonomy is not available: "+e.getMessage());
+		return null;
+	}
+}
+
+/*returns the prefix index of a customised text database, it is built the first time and saved next to
+ *the database file. Returns null for the built-in databases (they are not files that can be read at an offset)
+ *or if the index cannot be built, then the database is split into db k-mers files.
+ */
+public static PrefixIndex getDatabaseIndex(String databaseName, String dbOption, int permsPower) {
+	if (!dbOption.equals("customisedDB")) {
+		return null;
+	}
+	try {
+		File dbFile = new File(databaseName);
+		return PrefixIndex.load(dbFile, new File(databaseName+PrefixIndex.EXTENSION), permsPower);
+	}
+	catch (IOException e) {
+		System.out.println("The database will be split, its index is not available: "+e.getMessage());
+		return null;
+	}
+}
+
+//file derived from the database (binary copy, statistics): next to a customised database, in the dbCache folder otherwise
+private static File getDatabaseFile(String databaseName, String dbOption, String extension) {
+	if (dbOption.equals("customisedDB")) {
+		return new File(databaseName+extension);
+	}
+	if (ClassLoader.getSystemResource(databaseName) == null) {
+		return null;
+	}
+	String rootDir = System.getProperty(DIR_PROPERTY_NAME, currentDir);
+	File cacheDir = new File(rootDir, DB_CACHE_DIR);
+	if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+		return null;
+	}
+	return new File(cacheDir, Paths.get(databaseName).getFileName()+extension);
+}
+
+private static long getTextModified(String databaseName, String dbOption) throws IOException {
+	if (dbOption.equals("customisedDB")) {
+		return new File(databaseName).lastModified();
+	}
+	return getSystemResource(databaseName).openConnection().getLastModified();
+}
+
+private static BufferedReader openTextDatabase(String databaseName, String dbOption) throws IOException {
+	if (dbOption.equals("customisedDB")) {
+		return new BufferedReader(new FileReader(databaseName));
+	}
+	URL dbFileURL = getSystemResource(databaseName);
+	return new BufferedReader(new InputStreamReader(dbFileURL.openStream()));
+}
+
+//the URL of a file shipped with DisCVR (built-in databases, names.dmp and nodes.dmp)
+private static URL getSystemResource(String name) throws FileNotFoundException {
+	URL url = ClassLoader.getSystemResource(name);
+	if (url == null) {
+		throw new FileNotFoundException(name+" is not found");
+	}
+	return url;
+}
+
 public static SampleClassification getSc() {
 	return sc;
 }
@@ -152,7 +440,7 @@ public SampleKmersMatching getkC2() {
 }
 
 public void setKM(SampleKmersMatching kC2) {
-	this.kM = kM;
+	this.kM = kC2;
 }
 
 //To run DisCVR's sample classification from command line 
@@ -218,15 +506,23 @@ public static void main(String[] args) throws Exception{
 
 /******************** Helpers methods *******************/
 
+//uses the results collected while matching, the match file is only read when they are not available
+private int [] setKmersTrees(ClassificationOutput classOutput, String matchFile) {
+	if (kM != null && kM.getTaxonAggregator() != null) {
+		return classOutput.setKmersTrees(kM.getTaxonAggregator());
+	}
+	return classOutput.setKmersTrees(matchFile);
+}
+
 //Extracts information from classification output (used with DisCVR's command line)
 private void setVirusResultsList2 (String dbFile,String dbOption, String matchFile) {
 		virusResults = new ArrayList<VirusResult>();
 		
 		//sets up the virus names, virus ranks, and dbkmers maps
-        ClassificationOutput classOutput = new ClassificationOutput(dbOption);
+        ClassificationOutput classOutput = new ClassificationOutput(dbOption, dbFile);
         classOutput.setDBIDsMap(dbFile,dbOption);
       
-       int [] numOfKmers=classOutput.setKmersTrees(matchFile);
+       int [] numOfKmers=setKmersTrees(classOutput, matchFile);
       
        allMatchedKmers = classOutput.getAllMatchedKmers();        
        virusResults = classOutput.getVirusMapResults ();
@@ -243,11 +539,11 @@ private String setVirusResultsList (String dbFile,String dbOption, String matchF
 		virusResults = new ArrayList<VirusResult>();
 		
 		//sets up the virus names, virus ranks, and db-kmers treemaps
-        ClassificationOutput classOutput = new ClassificationOutput(dbOption);
+        ClassificationOutput classOutput = new ClassificationOutput(dbOption, dbFile);
         classOutput.setDBIDsMap(dbFile,dbOption);
       
         //sets up the matchedkmers, distinct(=specific), and shared (=non specific) 
-        int [] numOfKmers=classOutput.setKmersTrees(matchFile);
+        int [] numOfKmers=setKmersTrees(classOutput, matchFile);
       
         allMatchedKmers = classOutput.getAllMatchedKmers();
       
@@ -276,13 +572,11 @@ private void classifySample (String []parameters) {
 	String savingDir = parameters[0]; //e.g. "D:/path/to/savingDir"
 	String sampleFile = parameters[1];//e.g. "D:/path/to/samplefile.fq"
 	String kSize = parameters[2];     //e.g. "30"
-	String inputFileFormat = parameters[3];//"fastq"
-	String kAnalyzeDir = parameters[4];//"D:/path/to/KAnalyzeDir"
 	String databaseName= parameters[5];//"HaemorrhagicVirusDB"
 	String dbOption = parameters [6]; //"BuiltInDB" to use DisCVR's db or "customisedDB" to use user's db
 	String entropyThrshld = parameters [7]; //specifies the entropythreshold 
 	
-	int permsPower = 5; //default setting for  the permutations used to split large files
+	int permsPower = 5; //the permutations used to split large files when the number of partitions cannot be chosen from the number of k-mers
 	String currentDir = System.getProperty("user.dir");
 	String outputDir = currentDir+"/ClassificationResults_"+kSize+"_"; //create a directory to hold results output
 	long startTime = System.currentTimeMillis();
@@ -292,7 +586,7 @@ private void classifySample (String []parameters) {
 	System.out.println("Counting k-mers from the sample file...");
 	
 	String sampleKmersFile = savingDir+"SampleKmers_"+kSize;
-	String [] samplekmerCountingParms = {sampleFile, kSize,inputFileFormat, sampleKmersFile,kAnalyzeDir,entropyThrshld};
+	String [] samplekmerCountingParms = {sampleFile, kSize, sampleKmersFile, entropyThrshld};
 
 	 kC = new KmersCounting(samplekmerCountingParms);
 	 
@@ -346,7 +640,15 @@ private void classifySample (String []parameters) {
 	  
 	  SampleKmersMatching sKM =new SampleKmersMatching();
 	  setKM(sKM);
-	  int []numOfMatches = sKM.searchForKmersMatches(savingDir, Integer.parseInt(kSize), permsPower, filename);
+	  sKM.useDatabase(databaseKmersFile, dbOption, permsPower);
+	  int []numOfMatches;
+	  try {
+		  numOfMatches = sKM.searchForKmersMatches(savingDir, Integer.parseInt(kSize), permsPower, filename);
+	  } catch (IOException e) {
+		  System.out.println("K-mers matching failed, the sample cannot be classified: "+e.getMessage());
+		  deleteTempFolder(savingDir);
+		  return;
+	  }
 	
 	  long endTime = System.currentTimeMillis();
 	  long duration = (endTime - startTime);  //classification time
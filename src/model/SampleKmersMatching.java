@@ -1,118 +1,380 @@
 package model;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import utilities.PermutationFiles;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import utilities.KmerCodec;
+import utilities.KmerDatabaseFile;
+import utilities.KmerPartitioner;
+import utilities.PrefixIndex;
+import utilities.KmerSetLookup;
+import utilities.TaxonSetTable;
 
 /***
  * Carries out exact matching between sample k-mers and database k-mers:
- * Sample k-mers are split into smaller files according to their first five bases.
- * e.g. all k-mers start with AAAAA are in one file and k-mers start with AAAAC are in another file and so on.
- * Database k-mers are split in the same manner. 
+ * Sample k-mers are split into smaller files of ranges of k-mers with about the same number of sample k-mers
+ * (see KmerPartitioner), e.g. the k-mers from AAAAAAAA to AAAACTGA are in one file and so on.
+ * Database k-mers are split with the same ranges. 
  * Matches between corresponding files is carried out and only k-mers found in both database and sample
  * files are written to the output file along with their taxonomy lables taken from the database file.
+ * Both files are sorted, so they are matched in a single pass over the two files (merge join) without
+ * loading the database k-mers in memory. The prefixes are matched in parallel.
+ * The database does not need to be split when it is a binary database, the sample k-mers are searched
+ * in it directly, or when it is a text database with a prefix index, the k-mers of a range
+ * are then read straight from the database file (see useDatabase). With the property discvr.residentIndex=true
+ * the k-mers of the binary database are kept in a hash table in memory between samples and looked up there,
+ * with discvr.mphfDatabase=true they are looked up in the compact database indexed by a minimal perfect hash.
+ * The matches are added to the per taxon counts of a TaxonAggregator as they are found, the output file of
+ * the matches is only written when it is asked for with the property discvr.exportMatchedKmers=true.
  *  
  * @author Maha Maabar
  *
  */
 public class SampleKmersMatching {
 	
-	private String[] getPermsArray(int k ){
-		char set[] = {'A', 'C', 'G', 'T'};
-		
-		PermutationFiles PF = new PermutationFiles(k,set.length);
-		String [] perms = PF.getPermsArray();
-
-    	/*Populate the permutations array*/
-		PF.printAllKLength(set,k,perms);
-		return perms;
+	public static final String EXPORT_PROPERTY_NAME = "discvr.exportMatchedKmers";
+	//memory used by a sample k-mer while its partition is matched (its line in the output and its count in the results)
+	public static final int KMER_BYTES = 128;
+	
+	private KmerDatabaseFile db;     //binary database
+	private KmerSetLookup kmerLookup; //the k-mers of the binary database kept in memory (hash table or hash database)
+	private String dbTextFile;       //text database with a prefix index
+	private PrefixIndex dbIndex;
+	private TaxonAggregator taxa;    //per taxon results of the last search
+	
+	/*searches the database directly, without split db k-mers files, when it is available as a binary
+	 *database or (customised databases) as a text database with a prefix index
+	 */
+	public void useDatabase(String databaseName, String dbOption, int permsPower) {
+		db = SampleClassification.getBinaryDatabase(databaseName, dbOption);
+		kmerLookup = SampleClassification.getResidentIndex(databaseName, dbOption);
+		if (kmerLookup == null) {
+			kmerLookup = SampleClassification.getMphfDatabase(databaseName, dbOption);
+		}
+		if (db == null) {
+			dbIndex = SampleClassification.getDatabaseIndex(databaseName, dbOption, KmerPartitioner.PREFIX_LEN);
+			dbTextFile = databaseName;
+		}
+	}
+	
+	//the results of the last search for matches, null if the search failed
+	public TaxonAggregator getTaxonAggregator() {
+		return taxa;
 	}
-    
-	//find k-mers which exists in both sample k-mers files and db k-mers files
-	public int [] searchForKmersMatches (String dir, int kmerLen, int k, String prefixName) {
+	
+	/*find k-mers which exists in both sample k-mers files and db k-mers files.
+	 *The files of each partition are matched as a separate task on a work-stealing pool of threads,
+	 *each task keeps its own matches and counts, and the results are combined in the order of the partitions.
+	 *The partitions are the ones saved in dir when the sample was split (4^k prefixes when there are none).
+	 *Throws an IOException when a partition cannot be matched, the results would be incomplete.
+	 */
+	public int [] searchForKmersMatches (String dir, int kmerLen, int k, String prefixName) throws IOException {
 		int []numOfMatches={0,0};
+		taxa = null;
+		boolean export = Boolean.getBoolean(EXPORT_PROPERTY_NAME);
 		
-		try(PrintWriter pw =  new PrintWriter(new BufferedWriter(new FileWriter(dir+"allMatchedKmers_"+prefixName+"_"+kmerLen)))){
-			String [] allPerms = getPermsArray(k);
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try(PrintWriter pw = export ? new PrintWriter(new BufferedWriter(new FileWriter(dir+"allMatchedKmers_"+prefixName+"_"+kmerLen))) : null;
+			FileChannel dbText = (dbIndex != null) ? FileChannel.open(Paths.get(dbTextFile), StandardOpenOption.READ) : null){
+			KmerPartitioner partitioner = KmerPartitioner.read(dir, k);
+			String [] allPerms = partitioner.getNames();
+			TaxonAggregator allTaxa = newTaxonAggregator(kmerLen);
             int numOfNonMatches =0; //counts number of distinct k-mers that are in the sample but not in the database
 
-			for(int i=0; i < allPerms.length; i++) {//There are 256 files
-				String sampleFileName = dir+"sKmers_"+allPerms[i];
-
-				File f = new File(sampleFileName);
-				if(!f.exists()) {//No need to carry search with the corresponding file from the database
-					continue;
-				}
-
-				/*get the corresponding database file */
-		        String dbFileName = dir+"dbKmers_"+allPerms[i];
-
-				File hF = new File(dbFileName);
-				/*no database file matches the virus file so all k-mers here are labelled unclassified
-				 * We do that by adding -1 to the position list
-				 */
-				if(!hF.exists()){
-					/*No need to carry matching, just add the list of sample kmers to the no match list */
-					BufferedReader    bf = new BufferedReader( new FileReader(sampleFileName));
-					String    kmerInstance ;
-
-					while((kmerInstance = bf.readLine()) !=null){
-						numOfNonMatches++;
-					 }
-					bf.close();
-	             }
-				 else {
-					VirusKmers vDB = new VirusKmers();
-					ArrayList<VirusKmers> kmers = vDB.getVirusKmersList(dbFileName, kmerLen);
-					ArrayList<String> dbKmersList = vDB.getKmersList(kmers);
-
-	                /*carries out a search for matches
-				  	 * Open the sample file and read it line by line.
-				  	 * Extract the kmer and search for it in the list of database k-mers.
-				  	 * If it exists, write its info to the output file.
-				  	 * Info is: k-mer, count in the sample file, taxID(s) from the database file
-				  	 */
-					BufferedReader bf = new BufferedReader( new FileReader(sampleFileName));
-					String kmerInstance ;
-
-					while((kmerInstance = bf.readLine()) !=null){
-						String[]words = kmerInstance.split("\t");
-						String kmer = words[0];
-						int count = Integer.parseInt(words[1]);
-
-	                    int index= Collections.binarySearch(dbKmersList, kmer);
-						if(index >=0){
-							VirusKmers v = vDB.getVirusKmerFromList(kmers,index);
-	                        v.setCount(count);
-						    pw.println(v.virusKmerInfo ());
-							numOfMatches[0]++;
-							numOfMatches[1]=numOfMatches[1]+count;
-	                    }
-						else{
-							numOfNonMatches++;
-	                    }
-	                 }
-					bf.close();
+            List<ForkJoinTask<PartitionMatches>> tasks = new ArrayList<ForkJoinTask<PartitionMatches>>();
+			for(int i=0; i < allPerms.length; i++) {//There are up to 1024 files
+				final int partition = i;
+				tasks.add(pool.submit(() -> matchPartition(dir, allPerms, partition, partitioner, kmerLen, dbText, export)));
+			}
+			for (ForkJoinTask<PartitionMatches> task : tasks) {
+				PartitionMatches matches = task.get();
+				if (matches != null) {
+					if (pw != null) {
+						pw.print(matches.lines);
+					}
+					allTaxa.merge(matches.taxa);
+					numOfMatches[0] += matches.numOfMatches[0];
+					numOfMatches[1] += matches.numOfMatches[1];
+					numOfNonMatches += matches.numOfNonMatches;
 				}
 			}
-			pw.close();
+			taxa = allTaxa;
 			
 			//delete temp files
 			deleteAllFiles (dir,"dbKmers_");
 			deleteAllFiles (dir,"sKmers_");
+			new File(dir, KmerPartitioner.FILE_NAME).delete();
 			
 		}
-		catch (IOException ex){
-			System.out.println("Errors reading/writing to files.");
-		}		
+		catch (ExecutionException ex){
+			throw new IOException("Errors matching the sample k-mers: "+ex.getCause().getMessage(), ex.getCause());
+		}
+		catch (InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("K-mers matching is interrupted.");
+		}
+		finally {
+			pool.shutdownNow();
+		}
 		return numOfMatches;
 	}	
 /************** Helper methods **************/
+	//matches the sample k-mers of a partition, returns null if the sample has no k-mers in that partition
+	private PartitionMatches matchPartition(String dir, String [] allPerms, int i, KmerPartitioner partitioner, int kmerLen, FileChannel dbText, boolean export) throws IOException {
+		String sampleFileName = dir+"sKmers_"+allPerms[i];
+
+		File f = new File(sampleFileName);
+		if(!f.exists()) {//No need to carry search with the corresponding file from the database
+			return null;
+		}
+		
+		//the lines of the matches are only kept when they are written to the output file
+		StringWriter lines = export ? new StringWriter() : null;
+		PartitionMatches matches = new PartitionMatches(lines, newTaxonAggregator(kmerLen));
+		PrintWriter pw = export ? new PrintWriter(lines) : null;
+
+		if (kmerLookup != null) {
+			matches.numOfNonMatches = searchKmerLookup(sampleFileName, pw, matches);
+			if (pw != null) {
+				pw.flush();
+			}
+			return matches;
+		}
+		if (db != null) {
+			matches.numOfNonMatches = searchBinaryDatabase(sampleFileName, i, partitioner, pw, matches);
+			if (pw != null) {
+				pw.flush();
+			}
+			return matches;
+		}
+		
+		/*get the corresponding database k-mers: from the db k-mers file or 
+		 *from the database file using the prefix index (a partition is a range of prefixes)
+		 */
+		BufferedReader dbLines = null;
+		if (dbIndex != null) {
+			int prefixLen = dbIndex.getPrefixLen();
+			byte [] dbPrefixLines = dbIndex.readPrefixes(dbText, partitioner.getStartPrefix(i, prefixLen), partitioner.getEndPrefix(i, prefixLen));
+			if (dbPrefixLines.length > 0) {
+				dbLines = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(dbPrefixLines)));
+			}
+		}
+		else {
+	        String dbFileName = dir+"dbKmers_"+allPerms[i];
+	        if (new File(dbFileName).exists()) {
+	        	dbLines = new BufferedReader(new FileReader(dbFileName));
+	        }
+		}
+
+		/*no database file matches the virus file so all k-mers here are labelled unclassified
+		 * We do that by adding -1 to the position list
+		 */
+		if(dbLines == null){
+			/*No need to carry matching, just add the list of sample kmers to the no match list */
+			try (BufferedReader bf = new BufferedReader( new FileReader(sampleFileName))) {
+				while(bf.readLine() !=null){
+					matches.numOfNonMatches++;
+				}
+			}
+         }
+		 else {
+            /*carries out a search for matches
+		  	 * Read the sample file and the database k-mers line by line at the same time.
+		  	 * If the sample k-mer is also in the database, write its info to the output.
+		  	 * Info is: k-mer, count in the sample file, taxID(s) from the database file
+		  	 */
+			try (BufferedReader bf = new BufferedReader( new FileReader(sampleFileName))) {
+				matches.numOfNonMatches = mergeTextDatabase(bf, dbLines, pw, matches);
+			}
+			finally {
+				dbLines.close();
+			}
+		}
+		if (pw != null) {
+			pw.flush();
+		}
+		return matches;
+	}
+	
+	//the matches of a single partition
+	private static class PartitionMatches {
+		final StringWriter lines;
+		final TaxonAggregator taxa;
+		final int [] numOfMatches = {0,0};
+		int numOfNonMatches;
+		
+		PartitionMatches(StringWriter lines, TaxonAggregator taxa) {
+			this.lines = lines;
+			this.taxa = taxa;
+		}
+	}
+	
+	/*merge join of the sorted sample k-mers with the sorted database lines: adds the sample k-mers
+	 *found in the database with their count in the sample and the taxIDs from the database to the matches
+	 *(and prints them when pw is not null). Returns the number of sample k-mers not found in the database.
+	 */
+	private int mergeTextDatabase(BufferedReader sample, BufferedReader dbLines, PrintWriter pw, PartitionMatches matches) throws IOException {
+		int numOfNonMatches = 0;
+		String dbLine = dbLines.readLine();
+		String kmerInstance;
+		while((kmerInstance = sample.readLine()) !=null){
+			int tab = kmerInstance.indexOf('\t');
+			String kmer = kmerInstance.substring(0, tab);
+			
+			//moves the database to the first k-mer that is not smaller than the sample k-mer
+			int compare = -1;
+			while (dbLine != null && (compare = compareKmers(dbLine, kmer)) < 0) {
+				dbLine = dbLines.readLine();
+			}
+			if (dbLine != null && compare == 0) {
+				int count = Integer.parseInt(kmerInstance.substring(tab+1).trim());
+				//one line: kmer count taxID(s) lengthOfTaxID(s)
+				String [] words = dbLine.split("\t");
+				String ids = words[2].trim();
+				//the taxID set is labelled by its taxIDs without their number
+				matches.taxa.addMatch(KmerCodec.encode(kmer), count, ids.substring(0, ids.lastIndexOf(' ')+1).trim());
+				if (pw != null) {
+					pw.println(kmer+"\t"+count+"\t"+ids+" ");
+				}
+				matches.numOfMatches[0]++;
+				matches.numOfMatches[1]=matches.numOfMatches[1]+count;
+			}
+			else {
+				numOfNonMatches++;
+			}
+		}
+		return numOfNonMatches;
+	}
+	
+	//compares the k-mer at the start of a database line with a k-mer
+	private static int compareKmers(String dbLine, String kmer) {
+		int len = kmer.length();
+		for (int i=0; i<len; i++) {
+			char c = (i < dbLine.length()) ? dbLine.charAt(i) : '\t';
+			if (c != kmer.charAt(i)) {
+				return (c == '\t') ? -1 : c - kmer.charAt(i);
+			}
+		}
+		return (len < dbLine.length() && dbLine.charAt(len) != '\t') ? 1 : 0;
+	}
+	
+	/*merge join of the k-mers of a sample file with the k-mers of the binary database in the same partition,
+	 *adds the matches to the per taxon results and prints them (when pw is not null) in the same format as 
+	 *the text database: k-mer, count in the sample, taxID(s) and the number of taxIDs. 
+	 *Returns the number of sample k-mers not found in the database.
+	 */
+	private int searchBinaryDatabase(String sampleFileName, int partition, KmerPartitioner partitioner, PrintWriter pw, PartitionMatches matches) throws IOException {
+		int numOfNonMatches = 0;
+		//only the database k-mers in the range of the partition are read
+		long next = db.lowerBound(partitioner.getFirstKmer(partition, db.getKSize()));
+		long to = db.lowerBound(partitioner.getFirstKmer(partition+1, db.getKSize()));
+		StringBuilder sb = new StringBuilder();
+		try (BufferedReader bf = new BufferedReader(new FileReader(sampleFileName))) {
+			String kmerInstance;
+			while((kmerInstance = bf.readLine()) !=null){
+				int tab = kmerInstance.indexOf('\t');
+				String kmer = kmerInstance.substring(0, tab);
+				int count = Integer.parseInt(kmerInstance.substring(tab+1).trim());
+				
+				long index = -1;
+				long packedKmer = -1;
+				if (kmer.length() == db.getKSize()) {
+					packedKmer = KmerCodec.encode(kmer);
+					if (packedKmer >= 0) {
+						while (next < to && db.getKmer(next) < packedKmer) {
+							next++;
+						}
+						if (next < to && db.getKmer(next) == packedKmer) {
+							index = next;
+						}
+					}
+				}
+				if (index >= 0) {
+					int setID = db.getSetID(index);
+					matches.taxa.addMatch(packedKmer, count, setID);
+					if (pw != null) {
+						int setSize = db.getSetSize(setID);
+						sb.setLength(0);
+						sb.append(kmer).append('\t').append(count).append('\t');
+						for (int j=0; j<setSize; j++) {
+							sb.append(db.getTaxID(setID, j)).append(' ');
+						}
+						sb.append(setSize).append(' ');
+						pw.println(sb);
+					}
+					matches.numOfMatches[0]++;
+					matches.numOfMatches[1]=matches.numOfMatches[1]+count;
+				}
+				else {
+					numOfNonMatches++;
+				}
+			}
+		}
+		return numOfNonMatches;
+	}
+
+	/*looks up the k-mers of a sample file in the database held in memory (resident hash table or hash database),
+	 *adds the matches to the per taxon results and prints them (when pw is not null) in the same format as 
+	 *the text database. Returns the number of sample k-mers not found in the database.
+	 */
+	private int searchKmerLookup(String sampleFileName, PrintWriter pw, PartitionMatches matches) throws IOException {
+		int numOfNonMatches = 0;
+		TaxonSetTable sets = kmerLookup.getSetTable();
+		StringBuilder sb = new StringBuilder();
+		try (BufferedReader bf = new BufferedReader(new FileReader(sampleFileName))) {
+			String kmerInstance;
+			while((kmerInstance = bf.readLine()) !=null){
+				int tab = kmerInstance.indexOf('\t');
+				String kmer = kmerInstance.substring(0, tab);
+				
+				long packedKmer = (kmer.length() == kmerLookup.getKSize()) ? KmerCodec.encode(kmer) : -1;
+				int setID = (packedKmer >= 0) ? kmerLookup.get(packedKmer) : -1;
+				if (setID >= 0) {
+					int count = Integer.parseInt(kmerInstance.substring(tab+1).trim());
+					matches.taxa.addMatch(packedKmer, count, setID);
+					if (pw != null) {
+						int setSize = sets.getSetSize(setID);
+						sb.setLength(0);
+						sb.append(kmer).append('\t').append(count).append('\t');
+						for (int j=0; j<setSize; j++) {
+							sb.append(sets.getTaxID(setID, j)).append(' ');
+						}
+						sb.append(setSize).append(' ');
+						pw.println(sb);
+					}
+					matches.numOfMatches[0]++;
+					matches.numOfMatches[1]=matches.numOfMatches[1]+count;
+				}
+				else {
+					numOfNonMatches++;
+				}
+			}
+		}
+		return numOfNonMatches;
+	}
+	
+	//the set IDs of the matches are the ones of the binary database when it is used
+	private TaxonAggregator newTaxonAggregator(int kmerLen) {
+		if (kmerLookup != null) {
+			return new TaxonAggregator(kmerLen, kmerLookup.getSetTable());
+		}
+		return (db != null) ? new TaxonAggregator(kmerLen, db.getSetTable()) : new TaxonAggregator(kmerLen);
+	}
+
 	//deletes all files in the dir with a certain prefix
     private void deleteAllFiles (String dirName, String fileN)
 	{
@@ -0,0 +1,228 @@
+package model;
+
+import java.util.Arrays;
+import utilities.KmerCodec;
+import utilities.LongIntHashMap;
+import utilities.TaxonSetTable;
+
+/***
+ * Collects the classification results while the sample k-mers are matched with the database,
+ * so the matches do not have to be written to a file and read back.
+ * The matches are added up by taxID set (see TaxonSetTable): the number of k-mers of each set and the sum
+ * of their counts in the sample. The sets are only expanded into their taxIDs when the results are read:
+ * for each taxID the number of specific (distinct) k-mers, the sum of their counts in the sample
+ * and the number of shared k-mers, in arrays indexed by the order in which the taxIDs were first seen.
+ * The matched k-mers and their counts are kept as packed k-mers.
+ * An aggregator is filled by one thread; the aggregators of several threads are combined with merge.
+ *
+ */
+public class TaxonAggregator {
+
+	private final int kSize;
+	private final TaxonSetTable sets;
+	//only the sets with matches have a slot, a database can have many more sets
+	private final LongIntHashMap slots = new LongIntHashMap(256); //setID -> its slot + 1
+	private int [] slotSets = new int [64];       //set ID of each slot
+	private int [] setKmers = new int [64];       //number of matched k-mers of the set of each slot
+	private long [] setCounts = new long [64];    //sum of the counts of the matched k-mers of the set of each slot
+	private int numSlots;
+	
+	//per taxID results, set when the results are read
+	private LongIntHashMap ordinals; //taxID -> its index + 1
+	private int [] taxIDs;
+	private int [] distinct;
+	private long [] totalCounts;
+	private int [] shared;
+	private int numTaxa;
+
+	private long [] matchedKmers = new long [1024];
+	private int [] matchedCounts = new int [1024];
+	private int numMatched;
+	private int numOfSpecificKmers;
+	private int numOfSharedKmers;
+
+	//the taxID sets are added to a table of the aggregator
+	public TaxonAggregator(int kSize) {
+		this(kSize, new TaxonSetTable());
+	}
+
+	//the set IDs of the matches are the ones of the table (e.g. the table of a binary database)
+	public TaxonAggregator(int kSize, TaxonSetTable sets) {
+		this.kSize = kSize;
+		this.sets = sets;
+	}
+
+	//adds a matched k-mer, its count in the sample and the taxID set of the k-mer in the database
+	public void addMatch(long kmer, int count, int setID) {
+		if (numMatched == matchedKmers.length) {
+			matchedKmers = Arrays.copyOf(matchedKmers, 2*numMatched);
+			matchedCounts = Arrays.copyOf(matchedCounts, 2*numMatched);
+		}
+		matchedKmers[numMatched] = kmer;
+		matchedCounts[numMatched++] = count;
+
+		int slot = getSlot(setID);
+		setKmers[slot]++;
+		setCounts[slot] += count;
+		if (sets.getSetSize(setID) == 1) {//it is a specific kmer
+			numOfSpecificKmers++;
+		}
+		else {//it is a shared k-mer between multiple taxIDS
+			numOfSharedKmers++;
+		}
+		ordinals = null;
+	}
+
+	//adds a matched k-mer with the taxIDs of the database line (separated by spaces, without their number)
+	public void addMatch(long kmer, int count, String ids) {
+		addMatch(kmer, count, sets.intern(ids));
+	}
+
+	//adds the results of another aggregator, its matched k-mers are placed after the ones of this aggregator
+	public void merge(TaxonAggregator other) {
+		for (int s=0; s<other.numSlots; s++) {
+			int setID = other.slotSets[s];
+			if (other.sets != sets) {//the set has another number in this table
+				setID = sets.intern(Arrays.copyOfRange(other.sets.getTaxIDs(), other.sets.getSetStart(setID), 
+					other.sets.getSetStart(setID+1)), other.sets.getSetSize(setID));
+			}
+			int slot = getSlot(setID);
+			setKmers[slot] += other.setKmers[s];
+			setCounts[slot] += other.setCounts[s];
+		}
+		ordinals = null;
+		if (numMatched+other.numMatched > matchedKmers.length) {
+			int size = Math.max(2*matchedKmers.length, numMatched+other.numMatched);
+			matchedKmers = Arrays.copyOf(matchedKmers, size);
+			matchedCounts = Arrays.copyOf(matchedCounts, size);
+		}
+		System.arraycopy(other.matchedKmers, 0, matchedKmers, numMatched, other.numMatched);
+		System.arraycopy(other.matchedCounts, 0, matchedCounts, numMatched, other.numMatched);
+		numMatched += other.numMatched;
+		numOfSpecificKmers += other.numOfSpecificKmers;
+		numOfSharedKmers += other.numOfSharedKmers;
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	public TaxonSetTable getSetTable() {
+		return sets;
+	}
+
+	//number of taxIDs with specific or shared k-mers
+	public int getNumTaxa() {
+		expandSets();
+		return numTaxa;
+	}
+
+	public int getTaxID(int taxon) {
+		expandSets();
+		return taxIDs[taxon];
+	}
+
+	//number of specific k-mers of the taxon
+	public int getDistinct(int taxon) {
+		expandSets();
+		return distinct[taxon];
+	}
+
+	//sum of the sample counts of the specific k-mers of the taxon
+	public long getTotalCounts(int taxon) {
+		expandSets();
+		return totalCounts[taxon];
+	}
+
+	//number of shared k-mers of the taxon
+	public int getShared(int taxon) {
+		expandSets();
+		return shared[taxon];
+	}
+
+	public int getNumMatched() {
+		return numMatched;
+	}
+
+	public long getMatchedKmer(int i) {
+		return matchedKmers[i];
+	}
+
+	public String getMatchedKmerString(int i) {
+		return KmerCodec.decode(matchedKmers[i], kSize);
+	}
+
+	public int getMatchedCount(int i) {
+		return matchedCounts[i];
+	}
+
+	public int getNumOfSpecificKmers() {
+		return numOfSpecificKmers;
+	}
+
+	public int getNumOfSharedKmers() {
+		return numOfSharedKmers;
+	}
+
+	/************** Helper methods **************/
+	
+	//adds up the results of the sets for each of their taxIDs
+	private void expandSets() {
+		if (ordinals != null) {
+			return;
+		}
+		ordinals = new LongIntHashMap(256);
+		taxIDs = new int [64];
+		distinct = new int [64];
+		totalCounts = new long [64];
+		shared = new int [64];
+		numTaxa = 0;
+		for (int slot=0; slot<numSlots; slot++) {
+			int setID = slotSets[slot];
+			int setSize = sets.getSetSize(setID);
+			if (setSize == 1) {//specific k-mers ==> adds to the distinct k-mers
+				int taxon = getOrdinal(sets.getTaxID(setID, 0));
+				distinct[taxon] += setKmers[slot];
+				totalCounts[taxon] += setCounts[slot];
+			}
+			else {//k-mers shared between multiple taxIDS
+				for (int j=0; j<setSize; j++) {
+					shared[getOrdinal(sets.getTaxID(setID, j))] += setKmers[slot];
+				}
+			}
+		}
+	}
+	
+	private int getSlot(int setID) {
+		int slot = slots.get(setID);
+		if (slot > 0) {
+			return slot-1;
+		}
+		if (numSlots == slotSets.length) {
+			int size = 2*numSlots;
+			slotSets = Arrays.copyOf(slotSets, size);
+			setKmers = Arrays.copyOf(setKmers, size);
+			setCounts = Arrays.copyOf(setCounts, size);
+		}
+		slotSets[numSlots] = setID;
+		slots.put(setID, numSlots+1);
+		return numSlots++;
+	}
+	
+	private int getOrdinal(int taxID) {
+		int ordinal = ordinals.get(taxID);
+		if (ordinal > 0) {
+			return ordinal-1;
+		}
+		if (numTaxa == taxIDs.length) {
+			int size = 2*numTaxa;
+			taxIDs = Arrays.copyOf(taxIDs, size);
+			distinct = Arrays.copyOf(distinct, size);
+			totalCounts = Arrays.copyOf(totalCounts, size);
+			shared = Arrays.copyOf(shared, size);
+		}
+		taxIDs[numTaxa] = taxID;
+		ordinals.put(taxID, numTaxa+1);
+		return numTaxa++;
+	}
+}
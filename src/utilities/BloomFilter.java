@@ -0,0 +1,66 @@
+package utilities;
+
+/***
+ * Bloom filter for packed k-mers.
+ * Remembers which k-mers have been seen at least once in a fixed number of bits, so k-mers seen only
+ * once do not need an entry in the counting table. A k-mer that was never added can be reported as
+ * seen (false positive), but a k-mer that was added is always reported as seen.
+ * The filter is not thread-safe.
+ *
+ */
+public class BloomFilter {
+
+	private static final long SEED = 0x9e3779b97f4a7c15L; //keeps the bits apart from the hash table slots
+
+	private final long [] bits;
+	private final long mask;
+	private final int numHashes;
+
+	//the number of bits is rounded down to a power of two (at least 64)
+	public BloomFilter(long numBits, int numHashes) {
+		long size = Long.highestOneBit(Math.max(64, numBits));
+		if (size/64 > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Bloom filter is too large: "+numBits+" bits");
+		}
+		bits = new long [(int)(size/64)];
+		mask = size - 1;
+		this.numHashes = Math.max(1, numHashes);
+	}
+
+	/*adds the k-mer to the filter,
+	 *returns true if the k-mer was (probably) already in the filter.
+	 */
+	public boolean put(long kmer) {
+		long h = LongIntHashMap.mix(kmer + SEED);
+		long h1 = h & 0xffffffffL;
+		long h2 = h >>> 32;
+		boolean seen = true;
+		for (int i=0; i<numHashes; i++) {
+			long bit = (h1 + i*h2) & mask;
+			int word = (int)(bit >>> 6);
+			long flag = 1L << bit;
+			if ((bits[word] & flag) == 0) {
+				seen = false;
+				bits[word] |= flag;
+			}
+		}
+		return seen;
+	}
+
+	public boolean mightContain(long kmer) {
+		long h = LongIntHashMap.mix(kmer + SEED);
+		long h1 = h & 0xffffffffL;
+		long h2 = h >>> 32;
+		for (int i=0; i<numHashes; i++) {
+			long bit = (h1 + i*h2) & mask;
+			if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long getNumBits() {
+		return mask + 1;
+	}
+}
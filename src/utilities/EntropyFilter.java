@@ -1,20 +1,115 @@
 package utilities;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /*** calculates the tri-nucleotide k-mer entropy using Shannon entropy
- * 
+ * The tri-nucleotides of a k-mer are counted in a 64 slots histogram and the p*log2(p) terms are
+ * taken from a table computed once for every possible count, so no objects are created per k-mer.
+ * The terms are added in the order of the tri-nucleotides (AAA, AAC, ... TTT) by every method, so a packed k-mer
+ * and its string give exactly the same entropy.
+ * An instance keeps its histogram between calls and must not be shared between threads.
+ *
  * @author Maha Maabar
  *
  */
 public class EntropyFilter {
-	
-	 public double calculateShannonEntropy(String s,int base) {
-		   Map<String, Integer> numOfOccurrence = new HashMap<>();
-		 
+
+	private static final int CODON_BASES = 3;
+
+	private final int [] histogram = new int [64]; //counts of each tri-nucleotide (2-bit codes of 3 bases)
+	private double [][] pLogPTables = new double [KmerCodec.MAX_K/CODON_BASES+1][];
+	private int kSize;
+
+	public EntropyFilter() {
+	}
+
+	//filter for packed k-mers of length kSize
+	public EntropyFilter(int kSize) {
+		KmerCodec.checkKSize(kSize);
+		this.kSize = kSize;
+	}
+
+	/*entropy of a 2-bit packed k-mer of length kSize,
+	 *gives the same value as calculateShannonEntropy(kmer string, 3)
+	 */
+	public double calculateShannonEntropy(long kmer) {
+		int n = kSize / CODON_BASES;
+		long usedCodons = 0; //histogram slots used by the k-mer
+		for (int i=0; i<n; i++) {
+			int codon = (int)(kmer >>> (2*(kSize-CODON_BASES*(i+1)))) & 63;
+			histogram[codon]++;
+			usedCodons |= 1L << codon;
+		}
+		return sumEntropy(n, usedCodons);
+	}
+
+	public double calculateShannonEntropy(String s,int base) {
+		int n = s.length() / base;
+		if (base != CODON_BASES || n >= pLogPTables.length) {
+			return calculateShannonEntropyMap(s, base);
+		}
+		long usedCodons = 0;
+		for (int i=0; i<n; i++) {
+			int index = CODON_BASES*i;
+			int c1 = KmerCodec.code(s.charAt(index));
+			int c2 = KmerCodec.code(s.charAt(index+1));
+			int c3 = KmerCodec.code(s.charAt(index+2));
+			if ((c1 | c2 | c3) < 0) { //letters other than ACGT
+				for (int codon=0; codon<histogram.length; codon++) {
+					histogram[codon] = 0;
+				}
+				return calculateShannonEntropyMap(s, base);
+			}
+			int codon = (c1 << 4) | (c2 << 2) | c3;
+			histogram[codon]++;
+			usedCodons |= 1L << codon;
+		}
+		return sumEntropy(n, usedCodons);
+	}
+
+	/************** Helper methods **************/
+
+	/*adds up the entropy of the counted tri-nucleotides in the order of their codes (the order of their strings)
+	 *and clears the histogram for the next k-mer
+	 */
+	private double sumEntropy(int n, long usedCodons) {
+		double [] pLogP = getPLogPTable(n);
+		double entropy = 0.0;
+		while (usedCodons != 0) {
+			int codon = Long.numberOfTrailingZeros(usedCodons);
+			usedCodons &= usedCodons-1;
+			entropy += pLogP[histogram[codon]];
+			histogram[codon] = 0;
+		}
+		if (entropy == 0)
+			return 0;
+		else
+			return -entropy;
+	}
+
+	//p*log2(p) for p = count/n and every count between 0 and n
+	private double [] getPLogPTable(int n) {
+		double [] table = pLogPTables[n];
+		if (table == null) {
+			table = new double [n+1];
+			for (int count=1; count<=n; count++) {
+				double prob = (double) count / n;
+				table[count] = prob * log2(prob);
+			}
+			pLogPTables[n] = table;
+		}
+		return table;
+	}
+
+	/*original calculation, used for other word lengths and for k-mers with letters other than ACGT,
+	 *the words are sorted so their terms are added in the same order as the tri-nucleotides of the histogram
+	 */
+	private double calculateShannonEntropyMap(String s,int base) {
+		   Map<String, Integer> numOfOccurrence = new TreeMap<>();
+
 		    for (int index = 0; index <= s.length()-base; index +=base) {
-		    	
+
 		      String occurrence = s.substring(index,index+base);
 		      if (numOfOccurrence.containsKey(occurrence)) {
 		    	  numOfOccurrence.put(occurrence, numOfOccurrence.get(occurrence) + 1);
@@ -22,7 +117,7 @@ public class EntropyFilter {
 		    	  numOfOccurrence.put(occurrence, 1);
 		      }
 		    }
-		 
+
 		    int n = s.length() / base;
 		    double entropy = 0.0;
 		    for (Map.Entry<String, Integer> entry : numOfOccurrence.entrySet()) {
@@ -34,7 +129,7 @@ public class EntropyFilter {
 		    else
 		    	return -entropy;
 		  }
-	 
+
     private double log2(double a) {
 	     return Math.log(a) / Math.log(2);
 	}
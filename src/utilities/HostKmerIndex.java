@@ -0,0 +1,219 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/***
+ * The k-mers of a host genome (e.g. human) counted once and kept between custom database builds, so a new
+ * database does not count the host genome again.
+ * The index is a sorted array of 2-bit packed canonical k-mers after a header (k-mer size, number of k-mers and
+ * the checksum of the host file). An index is named after the k-mer size and the checksum of its host file,
+ * so a changed host file or another k-mer size gets a new index. The file is mapped in chunks of at most 1 GB.
+ *
+ */
+public class HostKmerIndex implements Closeable {
+
+	public static final String EXTENSION = ".hki";
+
+	private static final long MAGIC = 0x4469734356524849L; //"DisCVRHI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int LONG_SHIFT = 27;             //k-mers per mapped chunk = 2^27 (1 GB)
+	private static final int TABLE_BYTES_PER_KMER = 24;   //hash table slot (key and count) with free slots and resizing
+
+	private final File file;
+	private final int kSize;
+	private final long numKmers;
+	private final long checksum;
+	private MappedByteBuffer [] kmers;
+
+	private HostKmerIndex(File file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+				throw new IOException(file+" is not a host k-mers index file");
+			}
+			kSize = header.getInt(12);
+			numKmers = header.getLong(16);
+			checksum = header.getLong(24);
+			if (channel.size() != HEADER_SIZE+8*numKmers) {
+				throw new IOException(file+" is incomplete");
+			}
+			kmers = KmerDatabaseFile.map(channel, HEADER_SIZE, 8*numKmers);
+		}
+	}
+
+	public static HostKmerIndex open(File file) throws IOException {
+		return new HostKmerIndex(file);
+	}
+
+	/*the index of the host file in indexDir, it is built (counting the host k-mers on numThreads threads)
+	 *when there is no index for this host file and k-mer size
+	 */
+	public static HostKmerIndex openOrBuild(String hostFile, int kSize, int numThreads, File indexDir) throws IOException {
+		long checksum = checksum(new File(hostFile));
+		File indexFile = new File(indexDir, getFileName(kSize, checksum));
+		if (indexFile.exists()) {
+			try {
+				HostKmerIndex index = open(indexFile);
+				if (index.getKSize() == kSize && index.getChecksum() == checksum) {
+					System.out.println("Using the host k-mers index "+indexFile);
+					return index;
+				}
+			}
+			catch (IOException e) {
+				System.out.println("Errors reading the host k-mers index: "+e.getMessage());
+			}
+		}
+		System.out.println("Building the host k-mers index "+indexFile);
+		indexDir.mkdirs();
+		build(hostFile, kSize, numThreads, checksum, indexFile);
+		return open(indexFile);
+	}
+
+	/*counts the canonical k-mers of the host file and writes them sorted to the index file.
+	 *The file is written under a temporary name and renamed at the end, so a reader never sees a partial index.
+	 */
+	public static void build(String hostFile, int kSize, int numThreads, long checksum, File indexFile) throws IOException {
+		File tempFile = new File(indexFile.getPath()+".tmp");
+		try {
+			KmerCounter counter = new KmerCounter(kSize, numThreads);
+			//a host genome larger than the memory budget is counted in disk buckets next to the index
+			long memoryBudget = MemoryBudget.getBytes();
+			long numKmers = HyperLogLog.estimateKmers(hostFile, kSize, numThreads)/50*51+16;
+			if (numKmers*TABLE_BYTES_PER_KMER > memoryBudget) {
+				counter.spillToDisk(indexFile.getAbsoluteFile().getParentFile(), memoryBudget);
+			}
+			else {
+				counter.expectKmers(numKmers);
+			}
+			counter.countFile(hostFile);
+
+			long [] written = new long [1];
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+				out.write(new byte [HEADER_SIZE]);
+				counter.drainSorted((kmer, count) -> {
+					try {
+						out.writeLong(kmer);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					written[0]++;
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+				out.writeLong(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(kSize);
+				out.writeLong(written[0]);
+				out.writeLong(checksum);
+			}
+			indexFile.delete();
+			if (!tempFile.renameTo(indexFile)) {
+				throw new IOException("Errors renaming "+tempFile+" to "+indexFile);
+			}
+		}
+		finally {
+			tempFile.delete();
+		}
+	}
+
+	//checksum of the content of a file (CRC32) with its length in the upper bits
+	public static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			byte [] buffer = new byte [1 << 16];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, n);
+			}
+		}
+		return (file.length() << 32) ^ crc.getValue();
+	}
+
+	//name of the index of a host file: hostKmers_<k-mer size>_<checksum>.hki
+	public static String getFileName(int kSize, long checksum) {
+		return "hostKmers_"+kSize+"_"+Long.toHexString(checksum)+EXTENSION;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	public long getNumKmers() {
+		return numKmers;
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public long getKmer(long index) {
+		return kmers[(int)(index >>> LONG_SHIFT)].getLong((int)(index & ((1L << LONG_SHIFT)-1)) << 3);
+	}
+
+	//true if the packed k-mer is a host k-mer
+	public boolean contains(long kmer) {
+		long i = lowerBound(kmer);
+		return i < numKmers && getKmer(i) == kmer;
+	}
+
+	//index of the first k-mer that is not smaller than the packed k-mer (numKmers if there is none)
+	public long lowerBound(long kmer) {
+		long low = 0;
+		long high = numKmers;
+		while (low < high) {
+			long mid = (low+high) >>> 1;
+			if (getKmer(mid) < kmer) {
+				low = mid+1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//number of host k-mers with each prefix of KmerPartitioner.PREFIX_LEN bases, to balance the partitions
+	public long [] countPrefixes() {
+		long [] prefixCounts = new long [1 << (2*KmerPartitioner.PREFIX_LEN)];
+		int shift = 2*(kSize-KmerPartitioner.PREFIX_LEN);
+		for (long i=0; i<numKmers; i++) {
+			long kmer = getKmer(i);
+			prefixCounts[(int)(shift >= 0 ? kmer >>> shift : kmer << -shift)]++;
+		}
+		return prefixCounts;
+	}
+
+	/*the mapped memory is released by the garbage collector,
+	 *the index must not be used after it is closed
+	 */
+	@Override
+	public void close() {
+		kmers = null;
+	}
+}
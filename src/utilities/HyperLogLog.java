@@ -0,0 +1,263 @@
+package utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/***
+ * HyperLogLog sketch that estimates the number of distinct k-mers of sequence files in a single pass and
+ * a few kilobytes of memory, so the counting and the building steps can size their tables and choose between
+ * counting in memory and on disk before they start.
+ * Each packed k-mer is hashed and the hash gives a register (its first bits) and a rank (the position of the
+ * first 1 bit in the other bits), the register keeps the largest rank. With 2^14 registers the estimate is
+ * within about 1% of the number of distinct k-mers.
+ *
+ */
+public class HyperLogLog {
+
+	public static final int DEFAULT_PRECISION = 14;
+	public static final long PREFIX_BYTES = 8 << 20; //bytes of the files sketched for a quick estimate (see estimateKmers)
+
+	private static final int BATCH_SIZE = 1 << 20; //number of bases handed to a thread at once
+
+	private final int precision;
+	private final byte [] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 18: "+precision);
+		}
+		this.precision = precision;
+		registers = new byte [1 << precision];
+	}
+
+	//adds a packed k-mer to the sketch
+	public void addKmer(long kmer) {
+		addHash(LongIntHashMap.mix(kmer));
+	}
+
+	public void addHash(long hash) {
+		int register = (int)(hash >>> (64-precision));
+		//the last bit stops the count of zeros when all the other bits are 0
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision-1))) + 1;
+		if (rank > registers[register]) {
+			registers[register] = (byte)rank;
+		}
+	}
+
+	//adds the k-mers of another sketch with the same precision
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("HyperLogLog sketches have different precisions");
+		}
+		for (int i=0; i<registers.length; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	//estimated number of distinct k-mers added to the sketch
+	public long estimate() {
+		double m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte rank : registers) {
+			sum += 1.0/(1L << rank);
+			if (rank == 0) {
+				zeros++;
+			}
+		}
+		double estimate = (0.7213/(1+1.079/m))*m*m/sum;
+		//linear counting is more accurate for small numbers of k-mers
+		if (estimate <= 2.5*m && zeros > 0) {
+			estimate = m*Math.log(m/zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/*estimates the number of distinct canonical k-mers of a fasta/fastq file (gzipped files must end with .gz),
+	 *the bases are read with a SequenceReader and sketched on numThreads threads
+	 */
+	public static long estimateKmers(String fileName, int kSize, int numThreads) throws IOException {
+		return estimateKmers(new String [] {fileName}, kSize, numThreads);
+	}
+
+	//estimates the number of distinct canonical k-mers in all the files together
+	public static long estimateKmers(String [] fileNames, int kSize, int numThreads) throws IOException {
+		return estimateKmers(fileNames, kSize, numThreads, Long.MAX_VALUE);
+	}
+
+	/*estimates the number of distinct canonical k-mers of the files from their first maxBytes bytes (compressed bytes
+	 *for gzipped files, which are then decompressed on the reading thread). The estimate of the bytes read is scaled up
+	 *to the length of the files with the growth of the distinct k-mers between the first half and the whole of the bytes
+	 *read: e.g. the k-mers of a sample with a high coverage of its genomes grow much more slowly than its size.
+	 *The estimate is at most the estimate of the bytes read scaled up in proportion to the length of the files.
+	 *The files are read in full when they are smaller than maxBytes.
+	 */
+	public static long estimateKmers(String [] fileNames, int kSize, int numThreads, long maxBytes) throws IOException {
+		KmerCodec.checkKSize(kSize);
+		int threads = Math.max(1, numThreads);
+		BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(2*threads+1);
+		BlockingQueue<Batch> full = new LinkedBlockingQueue<Batch>();
+		for (int i=0; i<2*threads+1; i++) {
+			free.add(new Batch(BATCH_SIZE));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		//each thread sketches the batches of the first half of the bytes read and the other batches apart
+		List<Future<HyperLogLog []>> workers = new ArrayList<Future<HyperLogLog []>>();
+		for (int i=0; i<threads; i++) {
+			workers.add(pool.submit(() -> {
+				HyperLogLog [] sketches = {new HyperLogLog(), new HyperLogLog()};
+				Batch batch;
+				while ((batch = full.take()) != Batch.END) {
+					sketches[batch.firstHalf ? 0 : 1].addKmers(batch.bases, batch.length, kSize);
+					free.put(batch);
+				}
+				return sketches;
+			}));
+		}
+
+		long totalBytes = 0;
+		long bytesRead = 0;
+		long halfBytes = 0; //bytes read by the batches of the first half
+		for (String fileName : fileNames) {
+			totalBytes += new File(fileName).length();
+		}
+		try {
+			for (String fileName : fileNames) {
+				if (bytesRead >= maxBytes) {
+					break;
+				}
+				//the position in the file gives the bytes read from a file that is not read in full
+				try (FileInputStream fileIn = (maxBytes == Long.MAX_VALUE) ? null : new FileInputStream(fileName);
+					 SequenceReader reader = new SequenceReader(openInput(fileName, fileIn), kSize-1)) {
+					long fileBytes = new File(fileName).length();
+					while (true) {
+						long position = (fileIn != null) ? bytesRead+fileIn.getChannel().position() : 0;
+						if (position >= maxBytes) {
+							fileBytes = fileIn.getChannel().position();
+							break;
+						}
+						Batch batch = free.take();
+						batch.firstHalf = position < maxBytes/2;
+						if (!batch.firstHalf && halfBytes == 0) {
+							halfBytes = position;
+						}
+						batch.length = reader.readBatch(batch.bases);
+						if (batch.length < 0) {
+							free.put(batch);
+							break;
+						}
+						full.put(batch);
+					}
+					bytesRead += fileBytes;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("k-mer estimation is interrupted");
+		}
+		finally {
+			for (int i=0; i<threads; i++) {
+				full.add(Batch.END);
+			}
+			pool.shutdown();
+		}
+
+		try {
+			HyperLogLog firstHalf = new HyperLogLog();
+			HyperLogLog sketch = new HyperLogLog();
+			for (Future<HyperLogLog []> worker : workers) {
+				HyperLogLog [] sketches = worker.get();
+				firstHalf.merge(sketches[0]);
+				sketch.merge(sketches[0]);
+				sketch.merge(sketches[1]);
+			}
+			long estimate = sketch.estimate();
+			if (bytesRead > 0 && bytesRead < totalBytes) {
+				//distinct k-mers ~ bytes^growth, with a growth between 0 and 1 measured on the bytes read
+				double growth = 1;
+				long halfEstimate = firstHalf.estimate();
+				if (halfEstimate > 0 && halfBytes > 0 && halfBytes < bytesRead) {
+					growth = Math.log((double)estimate/halfEstimate)/Math.log((double)bytesRead/halfBytes);
+					growth = Math.max(0, Math.min(1, growth));
+				}
+				return (long)(estimate*Math.pow((double)totalBytes/bytesRead, growth));
+			}
+			return estimate;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("k-mer estimation is interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("k-mer estimation failed", e.getCause());
+		}
+	}
+
+	/************** Helper methods **************/
+
+	//a file read in full is decompressed on all cores, the first bytes of a file (fileIn) are decompressed on the reading thread
+	private static InputStream openInput(String fileName, FileInputStream fileIn) throws IOException {
+		if (fileIn == null) {
+			return SequenceReader.openInput(fileName);
+		}
+		return fileName.endsWith(".gz") ? new GZIPInputStream(fileIn, 1 << 16) : fileIn;
+	}
+
+	//adds the canonical k-mers of a batch of bases (reads separated by new lines)
+	private void addKmers(byte [] bases, int length, int kSize) {
+		final long mask = KmerCodec.mask(kSize);
+		final int rcShift = 2*(kSize-1);
+		long fwd = 0;
+		long rc = 0;
+		int valid = 0;
+		for (int i=0; i<length; i++) {
+			int c = KmerCodec.code(bases[i]);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			fwd = ((fwd << 2) | c) & mask;
+			rc = (rc >>> 2) | ((long)(3-c) << rcShift);
+			if (valid < kSize) {
+				valid++;
+			}
+			if (valid == kSize) {
+				addKmer(fwd < rc ? fwd : rc);
+			}
+		}
+	}
+
+	//a block of bases passed from the reading thread to the sketching threads
+	private static class Batch {
+		static final Batch END = new Batch(0);
+
+		final byte [] bases;
+		int length;
+		boolean firstHalf;
+
+		Batch(int size) {
+			bases = new byte [size];
+		}
+	}
+}
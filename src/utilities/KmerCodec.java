@@ -0,0 +1,98 @@
+package utilities;
+
+/***
+ * Packs nucleotide k-mers into a long using 2 bits per base (A=0, C=1, G=2, T=3).
+ * K-mers of the same length keep their alphabetical order when compared as packed numbers,
+ * so sorting the packed values gives the same order as sorting the k-mer strings.
+ * The largest supported k-mer size is 31 so that -1 can never be a valid packed k-mer.
+ *
+ */
+public final class KmerCodec {
+
+	public static final int MAX_K = 31;
+
+	private static final byte [] CODES = new byte [256]; //2-bit code for each byte, -1 for non ACGT letters
+	private static final byte [] BASES = {'A', 'C', 'G', 'T'};
+
+	static {
+		for (int i=0; i<CODES.length; i++) {
+			CODES[i] = -1;
+		}
+		CODES['A'] = 0; CODES['a'] = 0;
+		CODES['C'] = 1; CODES['c'] = 1;
+		CODES['G'] = 2; CODES['g'] = 2;
+		CODES['T'] = 3; CODES['t'] = 3;
+	}
+
+	private KmerCodec() {
+	}
+
+	//returns the 2-bit code of a base or -1 if the base is not one of ACGT
+	public static int code(byte base) {
+		return CODES[base & 0xff];
+	}
+
+	public static int code(char base) {
+		return base < 256 ? CODES[base] : -1;
+	}
+
+	//mask that keeps the 2*k bits used by a k-mer
+	public static long mask(int k) {
+		return (1L << (2*k)) - 1;
+	}
+
+	public static void checkKSize(int k) {
+		if (k < 1 || k > MAX_K) {
+			throw new IllegalArgumentException("k-mer size must be between 1 and "+MAX_K+": "+k);
+		}
+	}
+
+	//packs the k letters of s starting at from, returns -1 if there is a letter other than ACGT
+	public static long encode(CharSequence s, int from, int k) {
+		long kmer = 0;
+		for (int i=from; i<from+k; i++) {
+			int c = code(s.charAt(i));
+			if (c < 0) {
+				return -1;
+			}
+			kmer = (kmer << 2) | c;
+		}
+		return kmer;
+	}
+
+	public static long encode(CharSequence s) {
+		return encode(s, 0, s.length());
+	}
+
+	public static long reverseComplement(long kmer, int k) {
+		long rc = 0;
+		for (int i=0; i<k; i++) {
+			rc = (rc << 2) | (3 - (kmer & 3));
+			kmer >>>= 2;
+		}
+		return rc;
+	}
+
+	//the canonical k-mer is the smaller of the k-mer and its reverse complement (same as KAnalyze -rcanonical)
+	public static long canonical(long kmer, int k) {
+		long rc = reverseComplement(kmer, k);
+		return rc < kmer ? rc : kmer;
+	}
+
+	//writes the k letters of a packed k-mer into out starting at offset
+	public static void decode(long kmer, int k, byte [] out, int offset) {
+		for (int i=k-1; i>=0; i--) {
+			out[offset+i] = BASES[(int)(kmer & 3)];
+			kmer >>>= 2;
+		}
+	}
+
+	public static String decode(long kmer, int k) {
+		char [] letters = new char [k];
+		for (int i=k-1; i>=0; i--) {
+			letters[i] = (char)BASES[(int)(kmer & 3)];
+			kmer >>>= 2;
+		}
+		return new String(letters);
+	}
+}
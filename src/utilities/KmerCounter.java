@@ -0,0 +1,493 @@
+package utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/***
+ * Counts canonical k-mers from a fasta or fastq file (plain or gzipped) inside the JVM.
+ * The calling thread streams the file into batches of bases (see SequenceReader) and a pool of
+ * counting threads extracts the 2-bit packed canonical k-mers from the batches.
+ * K-mers are counted in hash tables (shards) selected by the first bases of the k-mer,
+ * so the shards can be printed one after the other to get all k-mers in sorted order.
+ * When a Bloom filter size is given, a k-mer seen for the first time is only recorded in the Bloom
+ * filter of its shard and it is added to the shard with a count of 2 when it is seen again, so
+ * single copy k-mers (mostly sequencing errors) take no space in the tables. Their number is then
+ * estimated and a few single copy k-mers (Bloom filter false positives) are counted as 2.
+ * For samples larger than the memory, the counter can spill the k-mers to one disk bucket per shard
+ * instead (see spillToDisk); the buckets are then sorted and counted in parallel within the memory
+ * budget and passed on in the same sorted order.
+ *
+ */
+public class KmerCounter {
+
+	private static final int SHARD_BASES = 4;      //256 shards, one for each 4-letters prefix
+	private static final int BATCH_SIZE = 1 << 20; //number of bases handed to a counting thread at once
+	private static final int FLUSH_SIZE = 1024;    //number of k-mers buffered by a thread before locking a shard
+	private static final int BLOOM_HASHES = 4;
+
+	private final int kSize;
+	private final int numThreads;
+	private final int shardShift;
+	private final LongIntHashMap [] shards;
+	private final BloomFilter [] blooms;      //null when all k-mers are counted exactly
+	private final long [] singletons;         //k-mers of each shard only seen once (in the Bloom filter)
+	private long numOfReads;
+
+	//disk mode
+	private File [] bucketFiles;              //null when the k-mers are counted in memory
+	private FileChannel [] buckets;
+	private long memoryBudget;
+
+	public KmerCounter(int kSize, int numThreads) {
+		this(kSize, numThreads, 0);
+	}
+
+	//bloomBits > 0 keeps k-mers seen once in Bloom filters of (bloomBits) bits in total
+	public KmerCounter(int kSize, int numThreads, long bloomBits) {
+		KmerCodec.checkKSize(kSize);
+		this.kSize = kSize;
+		this.numThreads = Math.max(1, numThreads);
+
+		int shardBases = Math.min(SHARD_BASES, kSize);
+		shardShift = 2*(kSize-shardBases);
+		shards = new LongIntHashMap [1 << (2*shardBases)];
+		for (int i=0; i<shards.length; i++) {
+			shards[i] = new LongIntHashMap();
+		}
+		if (bloomBits > 0) {
+			blooms = new BloomFilter [shards.length];
+			for (int i=0; i<shards.length; i++) {
+				blooms[i] = new BloomFilter(bloomBits/shards.length, BLOOM_HASHES);
+			}
+			singletons = new long [shards.length];
+		}
+		else {
+			blooms = null;
+			singletons = null;
+		}
+	}
+
+	/*writes the k-mers into one file per shard in tempDir instead of counting them in memory,
+	 *the files are counted when the k-mers are drained, several at the same time within memoryBudget
+	 *bytes. Must be called before counting. The Bloom filters are not used in this mode.
+	 */
+	public void spillToDisk(File tempDir, long memoryBudget) throws IOException {
+		this.memoryBudget = memoryBudget;
+		bucketFiles = new File [shards.length];
+		buckets = new FileChannel [shards.length];
+		for (int i=0; i<shards.length; i++) {
+			bucketFiles[i] = new File(tempDir, "kmersBucket_"+i);
+			buckets[i] = FileChannel.open(bucketFiles[i].toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			shards[i] = null;
+		}
+	}
+
+	/*sizes the tables of the shards for about numKmers distinct k-mers (e.g. estimated with a HyperLogLog),
+	 *so they are not resized while counting. Must be called before counting, not used in disk mode.
+	 */
+	public void expectKmers(long numKmers) {
+		if (buckets != null) {
+			return;
+		}
+		int shardKmers = (int)Math.min(1 << 28, numKmers/shards.length+1);
+		for (int i=0; i<shards.length; i++) {
+			shards[i] = new LongIntHashMap(shardKmers);
+		}
+	}
+
+	//counts the k-mers of a fasta/fastq file, gzipped files must end with .gz
+	public void countFile(String fileName) throws IOException {
+		try (SequenceReader reader = new SequenceReader(fileName, kSize-1)) {
+			count(reader);
+		}
+	}
+
+	/*counts the canonical k-mers of a small file (e.g. one virus genome) on the calling thread, without the
+	 *shards and counting threads, so many small files can be counted at the same time on a pool of threads
+	 */
+	public static LongIntHashMap countSmallFile(String fileName, int kSize) throws IOException {
+		KmerCodec.checkKSize(kSize);
+		final long mask = KmerCodec.mask(kSize);
+		final int rcShift = 2*(kSize-1);
+		long fileSize = new File(fileName).length();
+		byte [] bases = new byte [(int)Math.max(4*kSize, Math.min(BATCH_SIZE, fileSize))];
+		LongIntHashMap counts = new LongIntHashMap((int)Math.min(BATCH_SIZE, fileSize));
+
+		try (SequenceReader reader = new SequenceReader(fileName, kSize-1)) {
+			int length;
+			while ((length = reader.readBatch(bases)) >= 0) {
+				long fwd = 0;
+				long rc = 0;
+				int valid = 0;
+				for (int i=0; i<length; i++) {
+					int c = KmerCodec.code(bases[i]);
+					if (c < 0) {
+						valid = 0;
+						continue;
+					}
+					fwd = ((fwd << 2) | c) & mask;
+					rc = (rc >>> 2) | ((long)(3-c) << rcShift);
+					if (valid < kSize) {
+						valid++;
+					}
+					if (valid == kSize) {
+						counts.add(fwd < rc ? fwd : rc, 1);
+					}
+				}
+			}
+		}
+		return counts;
+	}
+
+	public void count(SequenceReader reader) throws IOException {
+		BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(2*numThreads+1);
+		BlockingQueue<Batch> full = new LinkedBlockingQueue<Batch>();
+		for (int i=0; i<2*numThreads+1; i++) {
+			free.add(new Batch(BATCH_SIZE));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int i=0; i<numThreads; i++) {
+			workers.add(pool.submit(() -> {
+				countBatches(free, full);
+				return null;
+			}));
+		}
+
+		try {
+			while (true) {
+				Batch batch = free.take();
+				batch.length = reader.readBatch(batch.bases);
+				if (batch.length < 0) {
+					batch.length = 0;
+					free.put(batch);
+					break;
+				}
+				full.put(batch);
+			}
+			numOfReads += reader.getNumOfReads();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("k-mer counting is interrupted");
+		}
+		finally {
+			for (int i=0; i<numThreads; i++) {
+				full.add(Batch.END);
+			}
+			pool.shutdown();
+		}
+
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("k-mer counting is interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("k-mer counting failed", e.getCause());
+		}
+	}
+
+	//number of distinct k-mers counted so far (not known before draining in disk mode)
+	public long getNumKmers() {
+		long num = 0;
+		for (LongIntHashMap shard : shards) {
+			if (shard != null) {
+				num += shard.size();
+			}
+		}
+		return num;
+	}
+
+	/*number of k-mers seen only once that were kept in the Bloom filters and not counted,
+	 *an estimate because of Bloom filter false positives. 0 when all k-mers are counted exactly.
+	 */
+	public long getNumSkippedSingletons() {
+		if (blooms == null) {
+			return 0;
+		}
+		long num = 0;
+		for (int i=0; i<shards.length; i++) {
+			num += singletons[i];
+		}
+		return Math.max(0, num);
+	}
+
+	//number of reads in the counted files
+	public long getNumOfReads() {
+		return numOfReads;
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	/*passes all counted k-mers to the visitor in sorted order.
+	 *The shards are released one by one while visiting, so the counter is empty afterwards.
+	 */
+	public void drainSorted(KmerVisitor visitor) throws IOException {
+		if (buckets != null) {
+			drainBuckets(visitor);
+			return;
+		}
+		for (int i=0; i<shards.length; i++) {
+			LongIntHashMap shard = shards[i];
+			long [] keys = shard.sortedKeys();
+			for (long kmer : keys) {
+				visitor.visit(kmer, shard.get(kmer));
+			}
+			shards[i] = new LongIntHashMap(16);
+		}
+		if (blooms != null) {
+			Arrays.fill(blooms, null);
+		}
+	}
+
+	/************** Helper methods **************/
+
+	//runs on the counting threads until the end of the input
+	private void countBatches(BlockingQueue<Batch> free, BlockingQueue<Batch> full) throws InterruptedException {
+		long [][] buffers = new long [shards.length][FLUSH_SIZE];
+		int [] buffered = new int [shards.length];
+		ByteBuffer bytes = (buckets != null) ? ByteBuffer.allocate(8*FLUSH_SIZE) : null;
+
+		//a failed thread keeps recycling batches so that the reading thread is never blocked
+		Throwable failure = null;
+		Batch batch;
+		while ((batch = full.take()) != Batch.END) {
+			if (failure == null) {
+				try {
+					countBatch(batch, buffers, buffered, bytes);
+				}
+				catch (RuntimeException | OutOfMemoryError e) {
+					failure = e;
+				}
+			}
+			batch.length = 0;
+			free.put(batch);
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		if (failure != null) {
+			throw (Error)failure;
+		}
+		for (int s=0; s<shards.length; s++) {
+			flush(s, buffers[s], buffered[s], bytes);
+		}
+	}
+
+	private void countBatch(Batch batch, long [][] buffers, int [] buffered, ByteBuffer bytes) {
+		final long mask = KmerCodec.mask(kSize);
+		final int rcShift = 2*(kSize-1);
+		byte [] bases = batch.bases;
+
+		long fwd = 0;
+		long rc = 0;
+		int valid = 0;
+		for (int i=0; i<batch.length; i++) {
+			int c = KmerCodec.code(bases[i]);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			fwd = ((fwd << 2) | c) & mask;
+			rc = (rc >>> 2) | ((long)(3-c) << rcShift);
+			if (valid < kSize) {
+				valid++;
+			}
+			if (valid == kSize) {
+				long kmer = fwd < rc ? fwd : rc;
+				int s = (int)(kmer >>> shardShift);
+				buffers[s][buffered[s]++] = kmer;
+				if (buffered[s] == FLUSH_SIZE) {
+					flush(s, buffers[s], FLUSH_SIZE, bytes);
+					buffered[s] = 0;
+				}
+			}
+		}
+	}
+
+	private void flush(int s, long [] kmers, int n, ByteBuffer bytes) {
+		if (buckets != null) {
+			writeToBucket(s, kmers, n, bytes);
+			return;
+		}
+		LongIntHashMap shard = shards[s];
+		synchronized (shard) {
+			if (blooms == null) {
+				for (int i=0; i<n; i++) {
+					shard.add(kmers[i], 1);
+				}
+				return;
+			}
+			BloomFilter bloom = blooms[s];
+			for (int i=0; i<n; i++) {
+				long kmer = kmers[i];
+				if (!shard.addIfPresent(kmer, 1)) {
+					if (bloom.put(kmer)) {
+						shard.add(kmer, 2); //second sighting
+						singletons[s]--;
+					}
+					else {
+						singletons[s]++;
+					}
+				}
+			}
+		}
+	}
+
+	private void writeToBucket(int s, long [] kmers, int n, ByteBuffer bytes) {
+		bytes.clear();
+		bytes.asLongBuffer().put(kmers, 0, n);
+		bytes.limit(8*n);
+		FileChannel bucket = buckets[s];
+		try {
+			synchronized (bucket) {
+				while (bytes.hasRemaining()) {
+					bucket.write(bytes);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Errors writing to "+bucketFiles[s], e);
+		}
+	}
+
+	/*disk mode: counts the buckets on a pool of threads, as many at the same time as fit in the
+	 *memory budget, and visits them in order on the calling thread
+	 */
+	private void drainBuckets(KmerVisitor visitor) throws IOException {
+		for (FileChannel bucket : buckets) {
+			bucket.close();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<CountedBucket>> pending = new ArrayDeque<Future<CountedBucket>>();
+		Deque<Long> pendingBytes = new ArrayDeque<Long>();
+		long inMemory = 0;
+		try {
+			for (File file : bucketFiles) {
+				//the k-mers of a bucket and about half as much again for their counts
+				long needed = file.length()/2*3;
+				while (!pending.isEmpty() && (inMemory+needed > memoryBudget || pending.size() >= 2*numThreads)) {
+					visitBucket(pending.poll().get(), visitor);
+					inMemory -= pendingBytes.poll();
+				}
+				pending.add(pool.submit(() -> countBucket(file)));
+				pendingBytes.add(needed);
+				inMemory += needed;
+			}
+			while (!pending.isEmpty()) {
+				visitBucket(pending.poll().get(), visitor);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("k-mer counting is interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("k-mer counting failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+			for (File file : bucketFiles) {
+				file.delete();
+			}
+		}
+	}
+
+	private static void visitBucket(CountedBucket bucket, KmerVisitor visitor) {
+		for (int i=0; i<bucket.size; i++) {
+			visitor.visit(bucket.kmers[i], bucket.counts[i]);
+		}
+	}
+
+	//reads, sorts and counts the k-mers of one bucket file, runs on the pool threads
+	private static CountedBucket countBucket(File file) throws IOException {
+		long numKmers = file.length()/8;
+		if (numKmers > Integer.MAX_VALUE-8) {
+			throw new IOException("Too many k-mers in "+file+", a larger memory budget is needed");
+		}
+		long [] kmers = new long [(int)numKmers];
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+			int n = 0;
+			while (n < kmers.length) {
+				bytes.clear();
+				bytes.limit((int)Math.min(bytes.capacity(), 8L*(kmers.length-n)));
+				while (bytes.hasRemaining()) {
+					if (in.read(bytes) < 0) {
+						throw new IOException("Unexpected end of "+file);
+					}
+				}
+				bytes.flip();
+				int num = bytes.remaining()/8;
+				bytes.asLongBuffer().get(kmers, n, num);
+				n += num;
+			}
+		}
+		file.delete();
+		Arrays.sort(kmers);
+
+		//run-length count the sorted k-mers, the distinct k-mers are moved to the front of the array
+		int [] counts = new int [kmers.length];
+		int size = 0;
+		for (int i=0; i<kmers.length; ) {
+			int j = i+1;
+			while (j < kmers.length && kmers[j] == kmers[i]) {
+				j++;
+			}
+			kmers[size] = kmers[i];
+			counts[size++] = j-i;
+			i = j;
+		}
+		return new CountedBucket(kmers, counts, size);
+	}
+
+	private static class CountedBucket {
+		final long [] kmers;
+		final int [] counts;
+		final int size;
+
+		CountedBucket(long [] kmers, int [] counts, int size) {
+			this.kmers = kmers;
+			this.counts = counts;
+			this.size = size;
+		}
+	}
+
+	//a block of bases passed from the reading thread to the counting threads
+	private static class Batch {
+		static final Batch END = new Batch(0);
+
+		final byte [] bases;
+		int length;
+
+		Batch(int size) {
+			bases = new byte [size];
+		}
+	}
+}
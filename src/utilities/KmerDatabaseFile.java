@@ -0,0 +1,304 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/***
+ * Binary k-mers database file, opened with memory mapping instead of being read line by line.
+ * The text database (k-mer, count, taxIDs, number of taxIDs) is stored as:
+ *   a header (k-mer size, number of k-mers, sum of their counts, number of taxID sets)
+ *   the 2-bit packed k-mers in sorted order (8 bytes each)
+ *   the counts of the k-mers (4 bytes each)
+ *   the taxID set of each k-mer (4 bytes each), the sets are stored once at the end of the file (see TaxonSetTable)
+ *   the start of each set in the list of taxIDs followed by the list of taxIDs.
+ * The file is mapped in chunks of at most 1 GB, so databases larger than 2 GB can be used.
+ *
+ */
+public class KmerDatabaseFile implements Closeable {
+
+	public static final String EXTENSION = ".kdb";
+
+	private static final long MAGIC = 0x4469734356524442L; //"DisCVRDB"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int CHUNK_SHIFT = 30;           //1 GB per mapped chunk
+	private static final int LONG_SHIFT = CHUNK_SHIFT-3;  //k-mers per chunk = 2^27
+	private static final int INT_SHIFT = CHUNK_SHIFT-2;   //ints per chunk = 2^28
+
+	private final File file;
+	private final int kSize;
+	private final long numKmers;
+	private final long totalCounts;
+	private MappedByteBuffer [] kmers;
+	private MappedByteBuffer [] counts;
+	private MappedByteBuffer [] setIDs;
+	private TaxonSetTable sets;
+
+	private KmerDatabaseFile(File file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+				throw new IOException(file+" is not a k-mers database file");
+			}
+			kSize = header.getInt(12);
+			numKmers = header.getLong(16);
+			totalCounts = header.getLong(24);
+			int numSets = header.getInt(32);
+			int numTaxIDs = header.getInt(36);
+
+			long offset = HEADER_SIZE;
+			kmers = map(channel, offset, 8*numKmers);
+			offset += 8*numKmers;
+			counts = map(channel, offset, 4*numKmers);
+			offset += 4*numKmers;
+			setIDs = map(channel, offset, 4*numKmers);
+			offset += 4*numKmers;
+
+			ByteBuffer setsBuffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L*(numSets+1+numTaxIDs));
+			int [] setStarts = new int [numSets+1];
+			setsBuffer.asIntBuffer().get(setStarts);
+			int [] taxIDs = new int [numTaxIDs];
+			setsBuffer.position(4*(numSets+1));
+			setsBuffer.asIntBuffer().get(taxIDs);
+			sets = new TaxonSetTable(setStarts, taxIDs);
+		}
+	}
+
+	public static KmerDatabaseFile open(File file) throws IOException {
+		return new KmerDatabaseFile(file);
+	}
+
+	/*converts a text database (sorted by k-mer) into a binary database file.
+	 *The file is written under a temporary name and renamed at the end, so a reader never sees
+	 *a partial file.
+	 */
+	public static void write(BufferedReader textDB, File binaryFile) throws IOException {
+		File tempFile = new File(binaryFile.getPath()+".tmp");
+		File countsFile = new File(binaryFile.getPath()+".counts");
+		File setsFile = new File(binaryFile.getPath()+".sets");
+
+		TaxonSetTable sets = new TaxonSetTable();
+		int kSize = 0;
+		long numKmers = 0;
+		long totalCounts = 0;
+
+		try {
+			try (DataOutputStream kmersOut = openOutput(tempFile);
+				DataOutputStream countsOut = openOutput(countsFile);
+				DataOutputStream setsOut = openOutput(setsFile)) {
+
+				kmersOut.write(new byte [HEADER_SIZE]);
+				long previous = -1;
+				String line;
+				while ((line = textDB.readLine()) != null) {
+					//one line: kmer count taxID(s) lengthOfTaxID(s)
+					String [] words = line.split("\t");
+					if (words.length < 3) {
+						continue;
+					}
+					if (kSize == 0) {
+						kSize = words[0].length();
+						KmerCodec.checkKSize(kSize);
+					}
+					long kmer = KmerCodec.encode(words[0]);
+					if (kmer < 0 || words[0].length() != kSize) {
+						throw new IOException("Invalid k-mer in the database: "+words[0]);
+					}
+					if (kmer <= previous) {
+						throw new IOException("The database k-mers are not sorted at: "+words[0]);
+					}
+					previous = kmer;
+					int count = Integer.parseInt(words[1]);
+
+					//the taxIDs are followed by their number
+					String ids = words[2].substring(0, words[2].lastIndexOf(' ')+1).trim();
+					int setNumber = sets.intern(ids);
+
+					kmersOut.writeLong(kmer);
+					countsOut.writeInt(count);
+					setsOut.writeInt(setNumber);
+					numKmers++;
+					totalCounts += count;
+				}
+
+				//the counts, the set of each k-mer and the sets follow the k-mers
+				countsOut.flush();
+				setsOut.flush();
+				append(countsFile, kmersOut);
+				append(setsFile, kmersOut);
+				for (int setID=0; setID<=sets.getNumSets(); setID++) {
+					kmersOut.writeInt(sets.getSetStart(setID));
+				}
+				int [] taxIDs = sets.getTaxIDs();
+				for (int i=0; i<sets.getNumTaxIDs(); i++) {
+					kmersOut.writeInt(taxIDs[i]);
+				}
+			}
+
+			try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+				out.writeLong(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(kSize);
+				out.writeLong(numKmers);
+				out.writeLong(totalCounts);
+				out.writeInt(sets.getNumSets());
+				out.writeInt(sets.getNumTaxIDs());
+			}
+			binaryFile.delete();
+			if (!tempFile.renameTo(binaryFile)) {
+				throw new IOException("Errors renaming "+tempFile+" to "+binaryFile);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid line in the database: "+e.getMessage());
+		}
+		finally {
+			countsFile.delete();
+			setsFile.delete();
+			tempFile.delete();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getKSize() {
+		return kSize;
+	}
+
+	public long getNumKmers() {
+		return numKmers;
+	}
+
+	//sum of the counts of all k-mers in the database
+	public long getTotalCounts() {
+		return totalCounts;
+	}
+
+	public long getKmer(long index) {
+		return kmers[(int)(index >>> LONG_SHIFT)].getLong((int)(index & ((1L << LONG_SHIFT)-1)) << 3);
+	}
+
+	public int getCount(long index) {
+		return counts[(int)(index >>> INT_SHIFT)].getInt((int)(index & ((1L << INT_SHIFT)-1)) << 2);
+	}
+
+	//the taxID set of the k-mer at index
+	public int getSetID(long index) {
+		return setIDs[(int)(index >>> INT_SHIFT)].getInt((int)(index & ((1L << INT_SHIFT)-1)) << 2);
+	}
+
+	public int getNumSets() {
+		return sets.getNumSets();
+	}
+
+	//number of taxIDs in a set
+	public int getSetSize(int setID) {
+		return sets.getSetSize(setID);
+	}
+
+	//j-th taxID of a set
+	public int getTaxID(int setID, int j) {
+		return sets.getTaxID(setID, j);
+	}
+
+	//the taxID sets of the database, the set IDs of the k-mers are indexes in this table
+	public TaxonSetTable getSetTable() {
+		return sets;
+	}
+
+	//index of the packed k-mer in the database or -1 if it is not in the database
+	public long find(long kmer) {
+		return find(kmer, 0, numKmers);
+	}
+
+	//binary search for the packed k-mer between the indexes from (inclusive) and to (exclusive)
+	public long find(long kmer, long from, long to) {
+		long low = from;
+		long high = to-1;
+		while (low <= high) {
+			long mid = (low+high) >>> 1;
+			long midKmer = getKmer(mid);
+			if (midKmer < kmer) {
+				low = mid+1;
+			}
+			else if (midKmer > kmer) {
+				high = mid-1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	//index of the first k-mer that is not smaller than the packed k-mer (numKmers if there is none)
+	public long lowerBound(long kmer) {
+		long low = 0;
+		long high = numKmers;
+		while (low < high) {
+			long mid = (low+high) >>> 1;
+			if (getKmer(mid) < kmer) {
+				low = mid+1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*the mapped memory is released by the garbage collector,
+	 *the file must not be used after it is closed
+	 */
+	@Override
+	public void close() {
+		kmers = null;
+		counts = null;
+		setIDs = null;
+	}
+
+	/************** Helper methods **************/
+
+	//maps a region of the file in chunks of at most 1 GB
+	static MappedByteBuffer [] map(FileChannel channel, long offset, long length) throws IOException {
+		long chunkSize = 1L << CHUNK_SHIFT;
+		int numChunks = (int)((length+chunkSize-1) / chunkSize);
+		MappedByteBuffer [] chunks = new MappedByteBuffer [Math.max(1, numChunks)];
+		for (int i=0; i<chunks.length; i++) {
+			long start = i*chunkSize;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset+start, Math.min(chunkSize, length-start));
+		}
+		return chunks;
+	}
+
+	private static DataOutputStream openOutput(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+
+	private static void append(File file, OutputStream out) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			byte [] buffer = new byte [1 << 16];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+/***
+ * Splits the sorted k-mers into partitions of about the same number of k-mers, instead of one partition for
+ * each prefix of five bases where prefixes like AAAAA and TTTTT hold far more k-mers than the others.
+ * A partition is a range of consecutive prefixes of eight bases, so the k-mers of a sorted file are still
+ * sorted within each partition and a partition is a range of a sorted database (binary database, prefix index).
+ * The ranges are chosen from the number of k-mers with each prefix in the file that is split (the sample
+ * k-mers, or the host k-mers when a database is built) and saved in a small file in the working directory,
+ * so the other files (database k-mers, virus k-mers) are split with the same ranges.
+ * The number of partitions is chosen from the number of k-mers and the memory budget (see MemoryBudget):
+ * the k-mers of the partitions processed at the same time must fit in the budget, and a small file is not
+ * split into many tiny files.
+ * A partition is named by its first prefix, e.g. the sample k-mers of the partition that starts with
+ * AAAAACGT are in the file sKmers_AAAAACGT.
+ *
+ */
+public class KmerPartitioner {
+
+	public static final int PREFIX_LEN = 8;                  //4^8 = 65536 prefixes
+	public static final String FILE_NAME = "kmerPartitions";
+	public static final int MIN_PARTITION_KMERS = 1 << 14;   //smallest partition worth a file of its own
+
+	private static final long MAGIC = 0x4469734356525054L;   //"DisCVRPT"
+	private static final int VERSION = 1;
+	private static final int NUM_PREFIXES = 1 << (2*PREFIX_LEN);
+
+	private final int [] starts;   //first prefix of each partition, with the number of prefixes at the end
+
+	private KmerPartitioner(int [] starts) {
+		this.starts = starts;
+	}
+
+	//one partition for each prefix of permsPower bases (the original perms files)
+	public static KmerPartitioner uniform(int permsPower) {
+		int numPartitions = 1 << (2*permsPower);
+		int [] starts = new int [numPartitions+1];
+		for (int i=0; i<=numPartitions; i++) {
+			starts[i] = i << (2*(PREFIX_LEN-permsPower));
+		}
+		return new KmerPartitioner(starts);
+	}
+
+	/*at most numPartitions partitions with about the same number of k-mers, from the number of k-mers of each
+	 *prefix. A prefix is never split, so a prefix with more k-mers than the others is a partition on its own.
+	 */
+	public static KmerPartitioner balanced(long [] prefixCounts, int numPartitions) {
+		long remaining = 0;
+		for (long count : prefixCounts) {
+			remaining += count;
+		}
+		if (remaining == 0) {
+			return uniform(0);
+		}
+		int [] starts = new int [numPartitions+1];
+		int n = 1;
+		long size = 0; //k-mers in the current partition
+		for (int prefix=0; prefix<NUM_PREFIXES-1 && n<numPartitions; prefix++) {
+			size += prefixCounts[prefix];
+			//the k-mers left are shared between the partitions left
+			if (size > 0 && size >= remaining/(numPartitions-n+1)) {
+				starts[n++] = prefix+1;
+				remaining -= size;
+				size = 0;
+			}
+		}
+		starts[n] = NUM_PREFIXES;
+		int [] used = new int [n+1];
+		System.arraycopy(starts, 0, used, 0, n+1);
+		return new KmerPartitioner(used);
+	}
+
+	//balanced partitions of the k-mers of a sorted file (one k-mer at the start of each line)
+	public static KmerPartitioner balanced(String kmersFile, int numPartitions) throws IOException {
+		return balanced(countPrefixes(kmersFile), numPartitions);
+	}
+
+	/*balanced partitions of the k-mers of a sorted file, their number is chosen from the number of k-mers in the file:
+	 *bytesPerKmer is the memory used by a k-mer when its partition is processed and numThreads the number of
+	 *partitions processed at the same time
+	 */
+	public static KmerPartitioner balanced(String kmersFile, long bytesPerKmer, int numThreads) throws IOException {
+		long [] prefixCounts = countPrefixes(kmersFile);
+		long numKmers = 0;
+		for (long count : prefixCounts) {
+			numKmers += count;
+		}
+		return balanced(prefixCounts, getNumPartitions(numKmers, bytesPerKmer, numThreads));
+	}
+
+	/*number of partitions for numKmers k-mers: enough partitions for the k-mers of numThreads partitions to fit
+	 *in the memory budget and, when there are enough k-mers, for each thread to process several partitions,
+	 *but no partition smaller than MIN_PARTITION_KMERS
+	 */
+	public static int getNumPartitions(long numKmers, long bytesPerKmer, int numThreads) {
+		long maxKmers = Math.max(MIN_PARTITION_KMERS, MemoryBudget.getBytes()/(bytesPerKmer*numThreads));
+		long numPartitions = (numKmers+maxKmers-1)/maxKmers;
+		numPartitions = Math.max(numPartitions, Math.min(4L*numThreads, numKmers/MIN_PARTITION_KMERS));
+		return (int)Math.max(1, Math.min(NUM_PREFIXES, numPartitions));
+	}
+
+	/*number of partitions for numKmers k-mers when the memory used by a partition does not depend on its size:
+	 *several partitions for each of the numThreads threads, but no partition smaller than MIN_PARTITION_KMERS
+	 */
+	public static int getNumPartitions(long numKmers, int numThreads) {
+		return (int)Math.max(1, Math.min(NUM_PREFIXES, Math.min(4L*numThreads, numKmers/MIN_PARTITION_KMERS)));
+	}
+
+	//returns the partitions saved in the file or null if there is no such file
+	public static KmerPartitioner read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file+" is not a partitions file");
+			}
+			int [] starts = new int [in.readInt()+1];
+			for (int i=0; i<starts.length; i++) {
+				starts[i] = in.readInt();
+			}
+			return new KmerPartitioner(starts);
+		}
+	}
+
+	//the partitions saved in dir or one partition per prefix of permsPower bases when they are not saved
+	public static KmerPartitioner read(String dir, int permsPower) {
+		try {
+			KmerPartitioner partitioner = read(new File(dir, FILE_NAME));
+			if (partitioner != null) {
+				return partitioner;
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Errors reading the k-mers partitions: "+e.getMessage());
+		}
+		return uniform(permsPower);
+	}
+
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(getNumPartitions());
+			for (int start : starts) {
+				out.writeInt(start);
+			}
+		}
+	}
+
+	public int getNumPartitions() {
+		return starts.length-1;
+	}
+
+	//the partition of a k-mer (the k-mer can be followed by the rest of its line)
+	public int getPartition(CharSequence kmer) {
+		return getPartitionOfPrefix(getPrefix(kmer));
+	}
+
+	//the partition of a 2-bit packed k-mer of kSize bases, a k-mer shorter than the prefix is followed by As
+	public int getPartition(long packedKmer, int kSize) {
+		int shift = 2*(kSize-PREFIX_LEN);
+		return getPartitionOfPrefix((int)(shift >= 0 ? packedKmer >>> shift : packedKmer << -shift));
+	}
+
+	public int getPartitionOfPrefix(int prefix) {
+		int low = 0;
+		int high = getNumPartitions()-1;
+		while (low < high) {
+			int mid = (low+high+1) >>> 1;
+			if (starts[mid] <= prefix) {
+				low = mid;
+			}
+			else {
+				high = mid-1;
+			}
+		}
+		return low;
+	}
+
+	//name of the partition used in the file names: its first prefix
+	public String getName(int partition) {
+		return KmerCodec.decode(starts[partition], PREFIX_LEN);
+	}
+
+	public String [] getNames() {
+		String [] names = new String [getNumPartitions()];
+		for (int i=0; i<names.length; i++) {
+			names[i] = getName(i);
+		}
+		return names;
+	}
+
+	//the smallest packed k-mer of size kSize in the partition (or after it)
+	public long getFirstKmer(int partition, int kSize) {
+		return scale(starts[partition], kSize, true);
+	}
+
+	//the prefixes of length prefixLen that contain the k-mers of the partition: from the start prefix to the end prefix (excluded)
+	public int getStartPrefix(int partition, int prefixLen) {
+		return (int)scale(starts[partition], prefixLen, false);
+	}
+
+	public int getEndPrefix(int partition, int prefixLen) {
+		return (int)scale(starts[partition+1], prefixLen, true);
+	}
+
+	/************** Helper methods **************/
+
+	//number of k-mers of each prefix in a file with one k-mer at the start of each line
+	private static long [] countPrefixes(String kmersFile) throws IOException {
+		long [] prefixCounts = new long [NUM_PREFIXES];
+		try (BufferedReader in = new BufferedReader(new FileReader(kmersFile), 1 << 16)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty()) {
+					prefixCounts[getPrefix(line)]++;
+				}
+			}
+		}
+		return prefixCounts;
+	}
+
+	/*packed first PREFIX_LEN bases of a k-mer, the bases after the end of a shorter k-mer are taken as A
+	 *and a base that is not one of ACGT (the end of the k-mer) as well
+	 */
+	private static int getPrefix(CharSequence kmer) {
+		int prefix = 0;
+		for (int i=0; i<PREFIX_LEN; i++) {
+			int c = (i < kmer.length()) ? KmerCodec.code(kmer.charAt(i)) : 0;
+			prefix = (prefix << 2) | (c < 0 ? 0 : c);
+		}
+		return prefix;
+	}
+
+	//a prefix of PREFIX_LEN bases to the number of len bases, rounded up or down when len is shorter
+	private static long scale(int prefix, int len, boolean roundUp) {
+		if (len >= PREFIX_LEN) {
+			return (long)prefix << (2*(len-PREFIX_LEN));
+		}
+		int shift = 2*(PREFIX_LEN-len);
+		return (prefix >> shift) + ((roundUp && (prefix & ((1 << shift)-1)) != 0) ? 1 : 0);
+	}
+}
@@ -0,0 +1,15 @@
+package utilities;
+
+/***
+ * Finds the taxID set of a packed k-mer in a database held in memory, e.g. a hash table of the database k-mers.
+ *
+ */
+public interface KmerSetLookup {
+	public int getKSize();
+
+	//set ID of the packed k-mer or -1 if it is not in the database
+	public int get(long kmer);
+
+	//the taxID sets of the database, the set IDs are indexes in this table
+	public TaxonSetTable getSetTable();
+}
@@ -0,0 +1,9 @@
+package utilities;
+
+/***
+ * Receives packed k-mers and their counts, e.g. when the counted k-mers are printed out in sorted order.
+ *
+ */
+public interface KmerVisitor {
+	public void visit(long kmer, int count);
+}
@@ -0,0 +1,179 @@
+package utilities;
+
+import java.util.Arrays;
+
+/***
+ * Open addressing hash table with primitive long keys and int values.
+ * Used to count packed k-mers without boxing every k-mer into a Long object.
+ * Keys must not be negative; -1 marks an empty slot. The table is not thread-safe.
+ *
+ */
+public class LongIntHashMap {
+
+	private static final long EMPTY = -1L;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	private long [] keys;
+	private int [] values;
+	private int size;
+	private int mask;
+	private int resizeAt;
+
+	public LongIntHashMap() {
+		this(1024);
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	//adds delta to the value of the key, a new key starts from 0
+	public void add(long key, int delta) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				values[slot] += delta;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = delta;
+		if (++size >= resizeAt) {
+			rehash(keys.length << 1);
+		}
+	}
+
+	//adds delta to the value of the key only if the key is already in the table
+	public boolean addIfPresent(long key, int delta) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				values[slot] += delta;
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public void put(long key, int value) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size >= resizeAt) {
+			rehash(keys.length << 1);
+		}
+	}
+
+	//returns the value of the key or 0 if the key is not in the table
+	public int get(long key) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	public boolean containsKey(long key) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	//returns a copy of all keys in the table, in no particular order
+	public long [] keys() {
+		long [] result = new long [size];
+		int n = 0;
+		for (int i=0; i<keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	public long [] sortedKeys() {
+		long [] result = keys();
+		Arrays.sort(result);
+		return result;
+	}
+
+	//releases the memory held by the table
+	public void clear() {
+		allocate(tableSizeFor(16));
+		size = 0;
+	}
+
+	/************** Helper methods **************/
+	private void allocate(int capacity) {
+		keys = new long [capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int [capacity];
+		mask = capacity - 1;
+		resizeAt = (int)(capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalStateException("The table cannot hold more than "+size+" entries");
+		}
+		long [] oldKeys = keys;
+		int [] oldValues = values;
+		allocate(capacity);
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slot(oldKeys[i]);
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private int slot(long key) {
+		return (int)mix(key) & mask;
+	}
+
+	//finalisation step of MurmurHash3, spreads the bits of packed k-mers over the whole table
+	static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		long capacity = 16;
+		while (capacity * LOAD_FACTOR <= expectedSize) {
+			capacity <<= 1;
+		}
+		if (capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Too many entries for the table: "+expectedSize);
+		}
+		return (int)capacity;
+	}
+}
@@ -0,0 +1,30 @@
+package utilities;
+
+/***
+ * Memory that the k-mer counting and matching steps may use for their tables.
+ * Set -Ddiscvr.memoryBudgetMB=<megabytes> to choose it, otherwise three quarters of the
+ * maximum heap size are used.
+ *
+ */
+public class MemoryBudget {
+
+	public static final String PROPERTY_NAME = "discvr.memoryBudgetMB";
+
+	private static final long MB = 1024L*1024L;
+
+	//the memory budget in bytes
+	public static long getBytes() {
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		long budget = maxHeap/4*3;
+		String value = System.getProperty(PROPERTY_NAME);
+		if (value != null) {
+			try {
+				budget = Long.parseLong(value.trim())*MB;
+			}
+			catch (NumberFormatException e) {
+				System.out.println("Ignoring invalid "+PROPERTY_NAME+" value: "+value);
+			}
+		}
+		return Math.max(16*MB, budget);
+	}
+}
@@ -0,0 +1,323 @@
+package utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * Compact database of the k-mers indexed by a minimal perfect hash function, for looking up sample k-mers
+ * in memory on machines that cannot keep a hash table of the whole database.
+ * The hash function maps the n database k-mers to the numbers 0..n-1 without collisions and takes about
+ * 3 to 4 bits per k-mer. It is built in levels: at each level the k-mers not yet placed are hashed into a bit
+ * array twice as large as their number, the k-mers that are alone in their position are placed there and
+ * the others go to the next level. The number of a k-mer is the number of set bits before its position.
+ * The k-mers themselves are not stored: each number has a 16 bits fingerprint of its k-mer, to reject
+ * k-mers that are not in the database (1 in 65536 of them is still accepted), and the taxID set of the k-mer.
+ * The file (extension .mphf) has a header followed by the size of each level, the bit arrays of the levels,
+ * the count of set bits before every 512 bits, the fingerprints, the set IDs and the taxID sets.
+ * It is mapped in memory when it is opened.
+ *
+ */
+public class MphfKmerDatabase implements KmerSetLookup, Closeable {
+
+	public static final String EXTENSION = ".mphf";
+	//the hash database is used when this system property is true
+	public static final String PROPERTY_NAME = "discvr.mphfDatabase";
+
+	private static final long MAGIC = 0x4469734356524d48L; //"DisCVRMH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int MAX_LEVELS = 64;
+	private static final int GAMMA = 2;                    //bits per k-mer not yet placed at each level
+	private static final int WORDS_PER_RANK = 8;           //a count of set bits for every 512 bits
+	private static final long FINGERPRINT_SEED = 0x632BE59BD9B4E019L;
+	private static final int CHUNK_SHIFT = 30;             //1 GB per mapped chunk
+
+	private final File file;
+	private final int kSize;
+	private final long numKmers;
+	private final long [] levelStarts;     //first bit of each level, with the end of the last level
+	private MappedByteBuffer [] bits;
+	private MappedByteBuffer [] ranks;
+	private MappedByteBuffer [] fingerprints;
+	private MappedByteBuffer [] setIDs;
+	private final TaxonSetTable sets;
+
+	private MphfKmerDatabase(File file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+				throw new IOException(file+" is not a k-mers hash database file");
+			}
+			kSize = header.getInt(12);
+			numKmers = header.getLong(16);
+			int numLevels = header.getInt(24);
+			int numSets = header.getInt(28);
+			int numTaxIDs = header.getInt(32);
+
+			long offset = HEADER_SIZE;
+			ByteBuffer levels = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L*(numLevels+1));
+			levelStarts = new long [numLevels+1];
+			levels.asLongBuffer().get(levelStarts);
+			offset += 8L*(numLevels+1);
+			long numWords = levelStarts[numLevels] >>> 6;
+			bits = KmerDatabaseFile.map(channel, offset, 8*numWords);
+			offset += 8*numWords;
+			long numRanks = (numWords+WORDS_PER_RANK-1) / WORDS_PER_RANK;
+			ranks = KmerDatabaseFile.map(channel, offset, 8*numRanks);
+			offset += 8*numRanks;
+			fingerprints = KmerDatabaseFile.map(channel, offset, 2*numKmers);
+			offset += 2*numKmers;
+			setIDs = KmerDatabaseFile.map(channel, offset, 4*numKmers);
+			offset += 4*numKmers;
+
+			ByteBuffer setsBuffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L*(numSets+1+numTaxIDs));
+			int [] setStarts = new int [numSets+1];
+			setsBuffer.asIntBuffer().get(setStarts);
+			int [] taxIDs = new int [numTaxIDs];
+			setsBuffer.position(4*(numSets+1));
+			setsBuffer.asIntBuffer().get(taxIDs);
+			sets = new TaxonSetTable(setStarts, taxIDs);
+		}
+	}
+
+	public static MphfKmerDatabase open(File file) throws IOException {
+		return new MphfKmerDatabase(file);
+	}
+
+	/*builds the hash function of the k-mers of a binary database and writes the hash database file.
+	 *The file is written under a temporary name and renamed at the end.
+	 */
+	public static void write(KmerDatabaseFile db, File mphfFile) throws IOException {
+		long n = db.getNumKmers();
+		if (n >= Integer.MAX_VALUE) {
+			throw new IOException("Too many k-mers for a hash database: "+n);
+		}
+
+		//the levels of the hash function, a k-mer is placed at the first level where its bit is set
+		List<long []> levels = new ArrayList<long []>();
+		long [] placed = new long [(int)(n >>> 6)+1];   //the k-mers already placed, by index in the database
+		long remaining = n;
+		while (remaining > 0) {
+			if (levels.size() == MAX_LEVELS) {
+				throw new IOException("The hash function of the database could not be built");
+			}
+			int level = levels.size();
+			long numBits = Math.max(64, ((GAMMA*remaining+63) >>> 6) << 6);
+			if ((numBits >>> 6) > Integer.MAX_VALUE-8) {
+				throw new IOException("Too many k-mers for a hash database: "+n);
+			}
+			long [] levelBits = new long [(int)(numBits >>> 6)];
+			long [] collisions = new long [levelBits.length];
+			for (long i=0; i<n; i++) {
+				if ((placed[(int)(i >>> 6)] & (1L << i)) != 0) {
+					continue;
+				}
+				long position = position(db.getKmer(i), level, numBits);
+				int word = (int)(position >>> 6);
+				long bit = 1L << position;
+				if ((levelBits[word] & bit) != 0) {
+					collisions[word] |= bit;
+				}
+				levelBits[word] |= bit;
+			}
+			//only the k-mers alone in their position are placed at this level
+			for (int w=0; w<levelBits.length; w++) {
+				levelBits[w] &= ~collisions[w];
+			}
+			levels.add(levelBits);
+			for (long i=0; i<n; i++) {
+				if ((placed[(int)(i >>> 6)] & (1L << i)) == 0) {
+					long position = position(db.getKmer(i), level, numBits);
+					if ((levelBits[(int)(position >>> 6)] & (1L << position)) != 0) {
+						placed[(int)(i >>> 6)] |= 1L << i;
+						remaining--;
+					}
+				}
+			}
+		}
+
+		//all the levels one after the other with the count of the set bits before every 512 bits
+		long [] levelStarts = new long [levels.size()+1];
+		long numWords = 0;
+		for (int l=0; l<levels.size(); l++) {
+			levelStarts[l] = numWords << 6;
+			numWords += levels.get(l).length;
+		}
+		levelStarts[levels.size()] = numWords << 6;
+		if (numWords > Integer.MAX_VALUE-8) {
+			throw new IOException("Too many k-mers for a hash database: "+n);
+		}
+		long [] allBits = new long [(int)numWords];
+		int firstWord = 0;
+		for (long [] levelBits : levels) {
+			System.arraycopy(levelBits, 0, allBits, firstWord, levelBits.length);
+			firstWord += levelBits.length;
+		}
+		levels = null;
+		long [] ranks = new long [(int)((numWords+WORDS_PER_RANK-1) / WORDS_PER_RANK)];
+		long count = 0;
+		for (int w=0; w<allBits.length; w++) {
+			if (w % WORDS_PER_RANK == 0) {
+				ranks[w / WORDS_PER_RANK] = count;
+			}
+			count += Long.bitCount(allBits[w]);
+		}
+
+		//the fingerprint and the taxID set of each k-mer at its number
+		short [] fingerprintList = new short [(int)n];
+		int [] setIDList = new int [(int)n];
+		for (long i=0; i<n; i++) {
+			long kmer = db.getKmer(i);
+			for (int level=0; level<levelStarts.length-1; level++) {
+				long bit = levelStarts[level]+position(kmer, level, levelStarts[level+1]-levelStarts[level]);
+				int word = (int)(bit >>> 6);
+				if ((allBits[word] & (1L << bit)) != 0) {
+					long index = ranks[word / WORDS_PER_RANK];
+					for (int w=word-word%WORDS_PER_RANK; w<word; w++) {
+						index += Long.bitCount(allBits[w]);
+					}
+					index += Long.bitCount(allBits[word] & ((1L << bit)-1));
+					fingerprintList[(int)index] = fingerprint(kmer);
+					setIDList[(int)index] = db.getSetID(i);
+					break;
+				}
+			}
+		}
+
+		File tempFile = new File(mphfFile.getPath()+".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+				TaxonSetTable sets = db.getSetTable();
+				out.writeLong(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(db.getKSize());
+				out.writeLong(n);
+				out.writeInt(levelStarts.length-1);
+				out.writeInt(sets.getNumSets());
+				out.writeInt(sets.getNumTaxIDs());
+				out.write(new byte [HEADER_SIZE-36]);
+				for (long start : levelStarts) {
+					out.writeLong(start);
+				}
+				for (long word : allBits) {
+					out.writeLong(word);
+				}
+				for (long rank : ranks) {
+					out.writeLong(rank);
+				}
+				for (short fingerprint : fingerprintList) {
+					out.writeShort(fingerprint);
+				}
+				for (int setID : setIDList) {
+					out.writeInt(setID);
+				}
+				for (int setID=0; setID<=sets.getNumSets(); setID++) {
+					out.writeInt(sets.getSetStart(setID));
+				}
+				int [] taxIDs = sets.getTaxIDs();
+				for (int i=0; i<sets.getNumTaxIDs(); i++) {
+					out.writeInt(taxIDs[i]);
+				}
+			}
+			mphfFile.delete();
+			if (!tempFile.renameTo(mphfFile)) {
+				throw new IOException("Errors renaming "+tempFile+" to "+mphfFile);
+			}
+		}
+		finally {
+			tempFile.delete();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public int getKSize() {
+		return kSize;
+	}
+
+	public long getNumKmers() {
+		return numKmers;
+	}
+
+	@Override
+	public TaxonSetTable getSetTable() {
+		return sets;
+	}
+
+	/*the mapped memory is released by the garbage collector,
+	 *the database must not be used after it is closed
+	 */
+	@Override
+	public void close() {
+		bits = null;
+		ranks = null;
+		fingerprints = null;
+		setIDs = null;
+	}
+
+	//set ID of the packed k-mer or -1 if it is not in the database (or, rarely, a wrong set ID for a k-mer not in the database)
+	@Override
+	public int get(long kmer) {
+		for (int level=0; level<levelStarts.length-1; level++) {
+			long numBits = levelStarts[level+1]-levelStarts[level];
+			long bit = levelStarts[level]+position(kmer, level, numBits);
+			long word = getLong(bits, bit >>> 6);
+			if ((word & (1L << bit)) != 0) {
+				//the number of the k-mer is the number of set bits before its bit
+				long block = (bit >>> 6) / WORDS_PER_RANK;
+				long index = getLong(ranks, block);
+				for (long w=block*WORDS_PER_RANK; w<(bit >>> 6); w++) {
+					index += Long.bitCount(getLong(bits, w));
+				}
+				index += Long.bitCount(word & ((1L << bit)-1));
+				if (getShort(fingerprints, index) != fingerprint(kmer)) {
+					return -1;
+				}
+				return getInt(setIDs, index);
+			}
+		}
+		return -1;
+	}
+
+	//size of the mapped file in bytes
+	public long getSizeInBytes() {
+		return file.length();
+	}
+
+	/************** Helper methods **************/
+
+	private static long position(long kmer, int level, long numBits) {
+		long hash = LongIntHashMap.mix(kmer + (level+1)*0x9E3779B97F4A7C15L);
+		return Long.remainderUnsigned(hash, numBits);
+	}
+
+	private static short fingerprint(long kmer) {
+		return (short)(LongIntHashMap.mix(kmer ^ FINGERPRINT_SEED) >>> 48);
+	}
+
+	private static long getLong(MappedByteBuffer [] buffers, long index) {
+		return buffers[(int)(index >>> (CHUNK_SHIFT-3))].getLong((int)(index & ((1L << (CHUNK_SHIFT-3))-1)) << 3);
+	}
+
+	private static int getInt(MappedByteBuffer [] buffers, long index) {
+		return buffers[(int)(index >>> (CHUNK_SHIFT-2))].getInt((int)(index & ((1L << (CHUNK_SHIFT-2))-1)) << 2);
+	}
+
+	private static short getShort(MappedByteBuffer [] buffers, long index) {
+		return buffers[(int)(index >>> (CHUNK_SHIFT-1))].getShort((int)(index & ((1L << (CHUNK_SHIFT-1))-1)) << 1);
+	}
+}
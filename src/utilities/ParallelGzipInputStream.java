@@ -0,0 +1,315 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/***
+ * Decompresses a gzipped file on more than one core.
+ * BGZF files (gzip made of independent blocks, e.g. written by bgzip) are inflated block by block
+ * on a pool of threads and the blocks are returned in their original order.
+ * Any other gzip file is inflated by a read-ahead thread, so decompression runs at the same time as
+ * the thread that consumes the stream.
+ * In both cases the decompressed data is passed through a bounded queue, so only a few blocks are
+ * held in memory at any time.
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 1 << 20;      //size of the chunks filled by the read-ahead thread
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final Chunk END_OF_DATA = new Chunk(new byte [0], 0);
+
+	private final ExecutorService pool;
+	private final int depth;                              //number of blocks decompressed ahead of the reader
+
+	//BGZF mode
+	private DataInputStream compressed;
+	private final Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+	private boolean endOfBlocks;
+
+	//read-ahead mode
+	private BlockingQueue<Object> chunks;
+	private Thread inflater;
+
+	private byte [] current = new byte [0];
+	private int pos;
+	private int limit;
+	private boolean finished;
+
+	public ParallelGzipInputStream(String fileName, int numThreads) throws IOException {
+		int threads = Math.max(1, numThreads);
+		depth = 4*threads;
+
+		if (isBgzf(fileName)) {
+			compressed = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+			pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "bgzf-inflater");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		else {
+			pool = null;
+			chunks = new ArrayBlockingQueue<Object>(Math.max(2, threads));
+			startInflater(fileName);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && !nextChunk()) {
+			return -1;
+		}
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte [] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == limit && !nextChunk()) {
+			return -1;
+		}
+		int n = Math.min(len, limit-pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finished = true;
+		if (pool != null) {
+			for (Future<Chunk> f : pending) {
+				f.cancel(true);
+			}
+			pending.clear();
+			pool.shutdownNow();
+			compressed.close();
+		}
+		else {
+			inflater.interrupt();
+			chunks.clear();
+		}
+	}
+
+	//true if the file starts with a gzip header that carries the BGZF block size
+	public static boolean isBgzf(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+			byte [] header = new byte [BGZF_HEADER_SIZE];
+			in.readFully(header);
+			return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8
+				&& (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2;
+		}
+		catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/************** Helper methods **************/
+
+	//moves to the next block of decompressed data, returns false at the end of the file
+	private boolean nextChunk() throws IOException {
+		while (!finished) {
+			Chunk next = (pool != null) ? nextBlock() : nextReadAheadChunk();
+			if (next == END_OF_DATA) {
+				finished = true;
+				break;
+			}
+			if (next.length > 0) {
+				current = next.data;
+				pos = 0;
+				limit = next.length;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Chunk nextBlock() throws IOException {
+		while (!endOfBlocks && pending.size() < depth) {
+			byte [] block = readRawBlock();
+			if (block == null) {
+				endOfBlocks = true;
+				break;
+			}
+			pending.add(pool.submit(() -> inflateBlock(block)));
+		}
+		Future<Chunk> f = pending.poll();
+		if (f == null) {
+			return END_OF_DATA;
+		}
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("decompression is interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Errors decompressing BGZF block", e.getCause());
+		}
+	}
+
+	//reads the next compressed BGZF block (header included), returns null at the end of the file
+	private byte [] readRawBlock() throws IOException {
+		byte [] header = new byte [12];
+		try {
+			compressed.readFully(header);
+		}
+		catch (EOFException e) {
+			return null;
+		}
+		int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte [] extra = new byte [xlen];
+		compressed.readFully(extra);
+
+		int blockSize = -1;
+		for (int i=0; i+4 <= xlen; ) {
+			int slen = (extra[i+2] & 0xff) | ((extra[i+3] & 0xff) << 8);
+			if (extra[i] == 'B' && extra[i+1] == 'C' && slen == 2) {
+				blockSize = ((extra[i+4] & 0xff) | ((extra[i+5] & 0xff) << 8)) + 1;
+			}
+			i += 4+slen;
+		}
+		if (blockSize < 0) {
+			throw new IOException("Not a BGZF block");
+		}
+		byte [] block = new byte [blockSize];
+		System.arraycopy(header, 0, block, 0, 12);
+		System.arraycopy(extra, 0, block, 12, xlen);
+		compressed.readFully(block, 12+xlen, blockSize-12-xlen);
+		return block;
+	}
+
+	//runs on the pool threads
+	private static Chunk inflateBlock(byte [] block) throws IOException {
+		int xlen = (block[10] & 0xff) | ((block[11] & 0xff) << 8);
+		int dataStart = 12+xlen;
+		int dataEnd = block.length-8;
+		long crc = readInt(block, dataEnd) & 0xffffffffL;
+		int size = readInt(block, dataEnd+4);
+
+		byte [] data = new byte [size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, dataStart, dataEnd-dataStart);
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int inflated = inflater.inflate(data, n, size-n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += inflated;
+			}
+			if (n != size) {
+				throw new IOException("Truncated BGZF block");
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupted BGZF block", e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		CRC32 check = new CRC32();
+		check.update(data, 0, size);
+		if (check.getValue() != crc) {
+			throw new IOException("CRC error in BGZF block");
+		}
+		return new Chunk(data, size);
+	}
+
+	private static int readInt(byte [] b, int i) {
+		return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8) | ((b[i+2] & 0xff) << 16) | ((b[i+3] & 0xff) << 24);
+	}
+
+	/*read-ahead mode: a single thread inflates the file into chunks.
+	 *GZIPInputStream also reads the following members of a multi-member gzip file.
+	 */
+	private void startInflater(String fileName) {
+		inflater = new Thread(() -> {
+			//the end of the data or the error is always queued, so the reader never waits forever
+			Object last = END_OF_DATA;
+			try (InputStream in = new GZIPInputStream(new FileInputStream(fileName), 1 << 16)) {
+				while (true) {
+					byte [] chunk = new byte [CHUNK_SIZE];
+					int n = 0;
+					int read;
+					while (n < chunk.length && (read = in.read(chunk, n, chunk.length-n)) != -1) {
+						n += read;
+					}
+					if (n > 0) {
+						chunks.put(new Chunk(chunk, n));
+					}
+					if (n < chunk.length) {
+						break;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				//the stream was closed, nobody reads the queue
+				last = null;
+			}
+			catch (Throwable e) {
+				last = e;
+			}
+			finally {
+				try {
+					if (last != null) {
+						chunks.put(last);
+					}
+				}
+				catch (InterruptedException e) {
+					//the stream was closed
+				}
+			}
+		}, "gzip-inflater");
+		inflater.setDaemon(true);
+		inflater.start();
+	}
+
+	private Chunk nextReadAheadChunk() throws IOException {
+		Object next;
+		try {
+			next = chunks.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("decompression is interrupted");
+		}
+		if (next instanceof Throwable) {
+			throw new IOException("Errors decompressing file", (Throwable)next);
+		}
+		return (Chunk)next;
+	}
+
+	private static class Chunk {
+		final byte [] data;
+		final int length;
+
+		Chunk(byte [] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package utilities;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Appends binary records to the files of many partitions (e.g. the virus k-mers of each range of k-mers).
+ * Each partition has a buffer outside the Java heap that the records are put in, a full buffer is written to
+ * the end of its file by a background thread while the records of the other partitions are buffered.
+ * The background thread keeps at most maxOpenFiles files open (the least recently written file is closed first),
+ * so writing to thousands of partitions does not open, map and close a file for each block of records.
+ * A writer is used by one thread; the files of the partitions must exist or are created empty.
+ *
+ */
+public class PartitionWriter implements Closeable {
+
+	public static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+	private static final int TOTAL_BUFFER_BYTES = 64 << 20; //buffers of all partitions together
+	private static final int MIN_BUFFER_BYTES = 4 << 10;
+	private static final int MAX_BUFFER_BYTES = 1 << 20;
+	private static final int MAX_PENDING = 8;               //full buffers waiting to be written
+
+	private final File [] files;
+	private final int bufferBytes;
+	private final ByteBuffer [] buffers;
+	private final ConcurrentLinkedQueue<ByteBuffer> spare = new ConcurrentLinkedQueue<ByteBuffer>(); //written buffers
+	private final ExecutorService flusher;
+	private final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+	private final Map<Integer, FileChannel> openFiles;      //only used by the background thread
+
+	public PartitionWriter(File [] files) {
+		this(files, DEFAULT_MAX_OPEN_FILES);
+	}
+
+	public PartitionWriter(File [] files, int maxOpenFiles) {
+		this.files = files;
+		bufferBytes = Math.max(MIN_BUFFER_BYTES, Math.min(MAX_BUFFER_BYTES, TOTAL_BUFFER_BYTES/Math.max(1, files.length)));
+		buffers = new ByteBuffer [files.length];
+		flusher = Executors.newSingleThreadExecutor();
+		int maxOpen = Math.max(1, maxOpenFiles);
+		openFiles = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+				if (size() > maxOpen) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*the buffer of a partition with room for a record of recordBytes bytes, the record is put in the buffer
+	 *by the caller. A full buffer is handed to the background thread first.
+	 */
+	public ByteBuffer getBuffer(int partition, int recordBytes) throws IOException {
+		ByteBuffer buffer = buffers[partition];
+		if (buffer != null && buffer.remaining() >= recordBytes) {
+			return buffer;
+		}
+		if (buffer != null) {
+			flush(partition, buffer);
+		}
+		//a record larger than a buffer gets a buffer of its own
+		buffer = (recordBytes > bufferBytes) ? null : spare.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(Math.max(recordBytes, bufferBytes));
+		}
+		buffers[partition] = buffer;
+		return buffer;
+	}
+
+	//writes the records of all partitions to their files and closes the files
+	@Override
+	public void close() throws IOException {
+		try {
+			for (int partition=0; partition<buffers.length; partition++) {
+				if (buffers[partition] != null) {
+					flush(partition, buffers[partition]);
+					buffers[partition] = null;
+				}
+			}
+			while (!pending.isEmpty()) {
+				waitFor(pending.poll());
+			}
+		}
+		finally {
+			flusher.submit(() -> {
+				for (FileChannel channel : openFiles.values()) {
+					closeQuietly(channel);
+				}
+				openFiles.clear();
+			});
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/************** Helper methods **************/
+
+	/*hands a buffer to the background thread, the writes of a partition are done in order.
+	 *Waits for the oldest write when MAX_PENDING buffers are waiting, so the buffers of the writer stay bounded.
+	 */
+	private void flush(int partition, ByteBuffer buffer) throws IOException {
+		while (pending.size() >= MAX_PENDING) {
+			waitFor(pending.poll());
+		}
+		buffer.flip();
+		pending.add(flusher.submit(() -> {
+			try {
+				FileChannel channel = openFiles.get(partition);
+				if (channel == null) {
+					channel = FileChannel.open(files[partition].toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+					openFiles.put(partition, channel);
+				}
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				return null;
+			}
+			finally {
+				buffer.clear();
+				if (buffer.capacity() == bufferBytes) {
+					spare.add(buffer);
+				}
+			}
+		}));
+		//the errors of finished writes are reported as soon as possible
+		while (!pending.isEmpty() && pending.peek().isDone()) {
+			waitFor(pending.poll());
+		}
+	}
+
+	private static void waitFor(Future<?> write) throws IOException {
+		try {
+			write.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("writing the partitions is interrupted");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Errors writing the partitions: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			System.out.println("Errors closing a partition file: "+e.getMessage());
+		}
+	}
+}
@@ -7,7 +7,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.lang.Math;
 import java.net.URL;
 
 
@@ -18,34 +17,13 @@ import java.net.URL;
  * E,g. Letter Set ={ 'A','C','G','T'} and prefix length= 4. 
  * Number of permutations= 4^4 = 256 different prefixes.
  * All k-mers starts AAAA in one file and all k-mers start with TTTT in another file and so on.
+ * The k-mers files are split into ranges of prefixes with about the same number of k-mers (see KmerPartitioner).
  * 
  */
 public class PermutationFiles {
 	
-	public String [] permsArray; //to hold the permutations
-	public static int permPosition; //to index the permutation array
-	
-	/**
-	 * Constructor
-	 * @param k: defines the length of the word
-	 * @param alphabetSet: defines the set of letters
-	 */
-	public PermutationFiles (int k, int alphabetSet){   
-		//calculate the number of permutations
-		int permArraySize = (int)Math.pow((double)alphabetSet, (double)k);
-		permsArray = new String [permArraySize];
-		permPosition =0;
-	}
-	
-	public int getPermsArraySize(){
-		return permsArray.length;
-	}	
-	public String [] getPermsArray(){
-		return permsArray;
-	}
-	
 	//splits the db k-mers file into smaller files. 
-	public String printsToDbPermsFiles(String dbFileName, String fileNamePrefix, String type, String dbOption, int permLen, String [] allPerms) {
+	public static String printsToDbPermsFiles(String dbFileName, String fileNamePrefix, String type, String dbOption, KmerPartitioner partitioner) {
 		String result="======================================================================\n";
 		/* variables to print out information about the contents of the input file. */
 		long lines = 0; //count lines in the file which corresponds to the number of different kmers in the file
@@ -74,7 +52,7 @@ public class PermutationFiles {
 				totalKmersCounts = totalKmersCounts + d;
 				
 				/*prints the line to a file */
-				String perm = line.substring(0,permLen); //get the first characters with the length of the word
+				String perm = partitioner.getName(partitioner.getPartition(line)); //the partition of the k-mer
 					                
 				if(!ok)	{ //file is not created 
 					String permsFile =fileNamePrefix+(perm);
@@ -113,7 +91,7 @@ public class PermutationFiles {
 	}	
 	
     //splits the sample k-mers into smaller files 
-	public String printsToSamplePermsFiles(String fileName, String dir,String type, int permLen, String [] allPerms) {
+	public static String printsToSamplePermsFiles(String fileName, String dir,String type, KmerPartitioner partitioner) {
 		String result="==============================================================\n";
 		String fileNamePrefix = dir+type+"Kmers_"; //prefix for all file names
 			
@@ -135,7 +113,7 @@ public class PermutationFiles {
 			    totalKmersCounts = totalKmersCounts + d;
 			                
 			    /*prints the line to a file */
-			    String perm = line.substring(0,permLen); //get the first characters with the length of the word
+			    String perm = partitioner.getName(partitioner.getPartition(line)); //the partition of the k-mer
 			    if(!ok)	{//file is not created 
 			    	String permsFile =fileNamePrefix+(perm);
 			        pw =  new PrintWriter(new BufferedWriter(new FileWriter(permsFile))); 
@@ -169,44 +147,4 @@ public class PermutationFiles {
 			return result;
 	}
 	
-	/* The method that prints all possible strings of length k. 
-	 * It is mainly a wrapper over recursive function printAllKLengthRec()*/   
-	
-	/**
-	 * @param set: the set of letters 
-	 * @param k: the length of words
-	 * @param perms: an array to hold all permutations
-	 * This method generates all possible words of length k made from the set. 
-	 * It mainly calls the recursive function printAllKLengthRec()
-	 */
-	public void printAllKLength(char set[], int k, String[] perms) 	{
-	
-        int n = set.length;          
-        printAllKLengthRec(set, "", n, k,perms);       
-        
-    } 
-    
-	/**
-	 * @param set: the set of letters
-	 * @param prefix: the word to be added to the array
-	 * @param n: the length of the set
-	 * @param k: the length of the word
-	 * @param perms: an array to hold all the different words
-	 * The main recursive method to populate the array with all possible words of length k
-	 */
-	public void printAllKLengthRec(char set[], String prefix, int n, int k, String [] perms) {
-        // Base case: k is 0, print prefix
-        if (k == 0) {
-            perms[permPosition++]= prefix;  //Add the prefix to the array             
-            return;
-        }
-        
-        //add all characters one by one from set recursively
-        for (int i = 0; i < n; ++i)
-        {
-           String newPrefix = prefix + set[i]; // Next character of input added             
-           printAllKLengthRec(set, newPrefix, n, k - 1,perms); // k is decreased, because we have added a new character 
-        }
-    }
-	
 }
@@ -0,0 +1,234 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/***
+ * Offsets of the k-mers of a sorted text database grouped by their first bases (prefix).
+ * For a prefix length of 8 (KmerPartitioner.PREFIX_LEN) there are 4^8 = 65536 prefixes and the index gives, for each of them,
+ * the byte range of the lines in the database file that start with that prefix, so the k-mers of
+ * a prefix can be read straight from the database instead of splitting the database into files.
+ * The index is built once by reading the database and is saved in a file next to it; it is built
+ * again when the database file changes.
+ *
+ */
+public class PrefixIndex {
+
+	public static final String EXTENSION = ".idx";
+
+	private static final long MAGIC = 0x4469734356524958L; //"DisCVRIX"
+	private static final int VERSION = 1;
+
+	private final int prefixLen;
+	private final long [] starts;   //byte offset of the first line of each prefix, with the file length at the end
+	private final long numKmers;
+	private final long totalCounts;
+
+	private PrefixIndex(int prefixLen, long [] starts, long numKmers, long totalCounts) {
+		this.prefixLen = prefixLen;
+		this.starts = starts;
+		this.numKmers = numKmers;
+		this.totalCounts = totalCounts;
+	}
+
+	/*returns the index of the database, reading it from the index file when it is up to date
+	 *or building it (and saving it to the index file) otherwise
+	 */
+	public static PrefixIndex load(File dbFile, File indexFile, int prefixLen) throws IOException {
+		PrefixIndex index = read(dbFile, indexFile, prefixLen);
+		if (index == null) {
+			index = build(dbFile, prefixLen);
+			try {
+				index.write(dbFile, indexFile);
+			}
+			catch (IOException e) {
+				System.out.println("The database index could not be saved to "+indexFile+": "+e.getMessage());
+			}
+		}
+		return index;
+	}
+
+	//builds the index by reading the database file once
+	public static PrefixIndex build(File dbFile, int prefixLen) throws IOException {
+		int numPrefixes = 1 << (2*prefixLen);
+		long [] starts = new long [numPrefixes+1];
+		long numKmers = 0;
+		long totalCounts = 0;
+		int nextPrefix = 0;       //prefixes before this one have their start set
+
+		try (ByteReader in = new ByteReader(new FileInputStream(dbFile))) {
+			int b = in.read();
+			while (b != -1) {
+				if (b == '\n' || b == '\r') { //empty line
+					b = in.read();
+					continue;
+				}
+				long lineStart = in.offset-1;
+				//the prefix of the k-mer
+				int prefix = 0;
+				for (int i=0; i<prefixLen; i++) {
+					int c = (b == -1) ? -1 : KmerCodec.code((byte)b);
+					if (c < 0) {
+						throw new IOException("Invalid k-mer in "+dbFile+" at byte "+lineStart);
+					}
+					prefix = (prefix << 2) | c;
+					b = in.read();
+				}
+				if (prefix+1 < nextPrefix) {
+					throw new IOException("The k-mers in "+dbFile+" are not sorted");
+				}
+				while (nextPrefix <= prefix) {
+					starts[nextPrefix++] = lineStart;
+				}
+				//the count of the k-mer follows the first tab
+				while (b != -1 && b != '\t' && b != '\n') {
+					b = in.read();
+				}
+				long count = 0;
+				if (b == '\t') {
+					b = in.read();
+					while (b >= '0' && b <= '9') {
+						count = count*10 + (b-'0');
+						b = in.read();
+					}
+				}
+				while (b != -1 && b != '\n') {
+					b = in.read();
+				}
+				if (b == '\n') {
+					b = in.read();
+				}
+				numKmers++;
+				totalCounts += count;
+			}
+			while (nextPrefix <= numPrefixes) {
+				starts[nextPrefix++] = in.offset;
+			}
+		}
+		return new PrefixIndex(prefixLen, starts, numKmers, totalCounts);
+	}
+
+	public int getPrefixLen() {
+		return prefixLen;
+	}
+
+	//byte offset of the first line of the prefix in the database file
+	public long getStart(int prefix) {
+		return starts[prefix];
+	}
+
+	//byte offset after the last line of the prefix in the database file
+	public long getEnd(int prefix) {
+		return starts[prefix+1];
+	}
+
+	public long getNumKmers() {
+		return numKmers;
+	}
+
+	public long getTotalCounts() {
+		return totalCounts;
+	}
+
+	//reads the lines of the prefixes from the first prefix to the end prefix (excluded), several ranges can be read at the same time
+	public byte [] readPrefixes(FileChannel dbFile, int from, int to) throws IOException {
+		long length = getStart(to)-getStart(from);
+		if (length > Integer.MAX_VALUE-8) {
+			throw new IOException("Too many k-mers with the same prefix in the database");
+		}
+		ByteBuffer lines = ByteBuffer.allocate((int)length);
+		long position = getStart(from);
+		while (lines.hasRemaining()) {
+			int n = dbFile.read(lines, position);
+			if (n < 0) {
+				throw new IOException("The database file is shorter than its index");
+			}
+			position += n;
+		}
+		return lines.array();
+	}
+
+	/************** Helper methods **************/
+
+	//returns null when there is no index file or it does not belong to the current database file
+	private static PrefixIndex read(File dbFile, File indexFile, int prefixLen) throws IOException {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION || in.readInt() != prefixLen
+				|| in.readLong() != dbFile.length() || in.readLong() != dbFile.lastModified()) {
+				return null;
+			}
+			long numKmers = in.readLong();
+			long totalCounts = in.readLong();
+			long [] starts = new long [(1 << (2*prefixLen))+1];
+			for (int i=0; i<starts.length; i++) {
+				starts[i] = in.readLong();
+			}
+			return new PrefixIndex(prefixLen, starts, numKmers, totalCounts);
+		}
+	}
+
+	private void write(File dbFile, File indexFile) throws IOException {
+		File tempFile = new File(indexFile.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(prefixLen);
+			out.writeLong(dbFile.length());
+			out.writeLong(dbFile.lastModified());
+			out.writeLong(numKmers);
+			out.writeLong(totalCounts);
+			for (long start : starts) {
+				out.writeLong(start);
+			}
+		}
+		indexFile.delete();
+		if (!tempFile.renameTo(indexFile)) {
+			tempFile.delete();
+			throw new IOException("Errors renaming "+tempFile);
+		}
+	}
+
+	//unsynchronised byte by byte reading that keeps track of the offset in the file
+	private static class ByteReader implements Closeable {
+		private final InputStream in;
+		private final byte [] buffer = new byte [1 << 20];
+		private int pos;
+		private int limit;
+		long offset;       //offset of the next byte
+
+		ByteReader(InputStream in) {
+			this.in = in;
+		}
+
+		int read() throws IOException {
+			if (pos == limit) {
+				limit = in.read(buffer);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			offset++;
+			return buffer[pos++] & 0xff;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
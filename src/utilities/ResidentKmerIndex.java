@@ -0,0 +1,105 @@
+package utilities;
+
+import java.nio.ByteBuffer;
+
+/***
+ * Hash table of the database k-mers kept outside the Java heap, for processes that classify several samples
+ * with the same database (e.g. DisCVR's GUI). A sample k-mer is then found with a few probes instead of a
+ * search in the database file, and the table is not scanned by the garbage collector.
+ * The keys are the 2-bit packed k-mers and the values the taxID set IDs of the k-mers (see TaxonSetTable).
+ * The table uses open addressing with linear probing and is split into direct buffers of at most 1 GB.
+ *
+ */
+public class ResidentKmerIndex implements KmerSetLookup {
+
+	private static final long EMPTY = -1L;         //packed k-mers are not negative
+	private static final int CHUNK_SHIFT = 27;     //slots per buffer = 2^27 (1 GB of keys)
+
+	private final int kSize;
+	private final long numKmers;
+	private final long mask;
+	private final ByteBuffer [] keys;
+	private final ByteBuffer [] values;
+	private final TaxonSetTable sets;
+
+	private ResidentKmerIndex(int kSize, long numKmers, TaxonSetTable sets) {
+		this.kSize = kSize;
+		this.numKmers = numKmers;
+		this.sets = sets;
+		//at most half of the slots are used
+		long capacity = Long.highestOneBit(Math.max(16, 2*numKmers-1)) << 1;
+		mask = capacity-1;
+		int numChunks = (int)Math.max(1, capacity >>> CHUNK_SHIFT);
+		int chunkSlots = (int)Math.min(capacity, 1L << CHUNK_SHIFT);
+		keys = new ByteBuffer [numChunks];
+		values = new ByteBuffer [numChunks];
+		for (int c=0; c<numChunks; c++) {
+			keys[c] = ByteBuffer.allocateDirect(8*chunkSlots);
+			values[c] = ByteBuffer.allocateDirect(4*chunkSlots);
+			for (int i=0; i<chunkSlots; i++) {
+				keys[c].putLong(8*i, EMPTY);
+			}
+		}
+	}
+
+	//builds the table from the k-mers of a binary database
+	public static ResidentKmerIndex build(KmerDatabaseFile db) {
+		ResidentKmerIndex index = new ResidentKmerIndex(db.getKSize(), db.getNumKmers(), db.getSetTable());
+		for (long i=0; i<db.getNumKmers(); i++) {
+			index.put(db.getKmer(i), db.getSetID(i));
+		}
+		return index;
+	}
+
+	@Override
+	public int getKSize() {
+		return kSize;
+	}
+
+	public long getNumKmers() {
+		return numKmers;
+	}
+
+	//the taxID sets of the database, the values of the table are indexes in this table
+	@Override
+	public TaxonSetTable getSetTable() {
+		return sets;
+	}
+
+	//set ID of the packed k-mer or -1 if it is not in the database
+	@Override
+	public int get(long kmer) {
+		long slot = LongIntHashMap.mix(kmer) & mask;
+		long key;
+		while ((key = getKey(slot)) != EMPTY) {
+			if (key == kmer) {
+				return values[(int)(slot >>> CHUNK_SHIFT)].getInt(4*(int)(slot & ((1L << CHUNK_SHIFT)-1)));
+			}
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	//size of the table outside the heap in bytes
+	public long getSizeInBytes() {
+		return 12*(mask+1);
+	}
+
+	/************** Helper methods **************/
+
+	private void put(long kmer, int setID) {
+		long slot = LongIntHashMap.mix(kmer) & mask;
+		long key;
+		while ((key = getKey(slot)) != EMPTY && key != kmer) {
+			slot = (slot+1) & mask;
+		}
+		int chunk = (int)(slot >>> CHUNK_SHIFT);
+		int i = (int)(slot & ((1L << CHUNK_SHIFT)-1));
+		keys[chunk].putLong(8*i, kmer);
+		values[chunk].putInt(4*i, setID);
+	}
+
+	private long getKey(long slot) {
+		return keys[(int)(slot >>> CHUNK_SHIFT)].getLong(8*(int)(slot & ((1L << CHUNK_SHIFT)-1)));
+	}
+}
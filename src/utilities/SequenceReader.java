@@ -0,0 +1,156 @@
+package utilities;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/***
+ * Streams the bases of a fasta or fastq file (plain or gzipped) in a single pass.
+ * Headers, '+' lines and quality lines are skipped while the file is read and the reads are counted
+ * on the way, so the file does not have to be scanned again to know the number of reads.
+ * The bases are returned in batches where the reads are separated by a new line character.
+ * A batch that ends in the middle of a read repeats the last (overlap) bases at the start of the
+ * next batch, so no k-mer is lost between two batches when overlap is k-1.
+ *
+ */
+public class SequenceReader implements Closeable {
+
+	public static final byte SEPARATOR = '\n'; //separates two reads in a batch
+
+	private static final int READ_SIZE = 1 << 16;
+
+	//parsing states
+	private static final int LINE_START = 0;
+	private static final int HEADER = 1;
+	private static final int SEQUENCE = 2;
+	private static final int PLUS = 3;
+	private static final int QUALITY = 4;
+	private static final int SKIP = 5;
+
+	private final InputStream in;
+	private final int overlap;
+	private final byte [] buffer = new byte [READ_SIZE];
+	private final byte [] carry;
+	private int carried;
+	private int pos;
+	private int limit;
+	private boolean eof;
+
+	private int format;  //'>' for fasta, '@' for fastq, 0 until the first header is seen
+	private int state = LINE_START;
+	private long numOfReads;
+
+	public SequenceReader(String fileName, int overlap) throws IOException {
+		this(openInput(fileName), overlap);
+	}
+
+	public SequenceReader(InputStream in, int overlap) {
+		this.in = in;
+		this.overlap = Math.max(0, overlap);
+		carry = new byte [this.overlap];
+	}
+
+	//opens a sequence file, gzipped files must end with .gz and are decompressed on all cores
+	public static InputStream openInput(String fileName) throws IOException {
+		if (fileName.endsWith(".gz")) {
+			return new ParallelGzipInputStream(fileName, Runtime.getRuntime().availableProcessors());
+		}
+		return new FileInputStream(fileName);
+	}
+
+	/*fills the batch with bases and returns the number of bytes written to it,
+	 *returns -1 when there are no more bases in the file.
+	 */
+	public int readBatch(byte [] batch) throws IOException {
+		if (eof && carried == 0) {
+			return -1;
+		}
+		int n = 0;
+		if (carried > 0) {
+			System.arraycopy(carry, 0, batch, 0, carried);
+			n = carried;
+			carried = 0;
+		}
+		int start = n;
+
+		while (n < batch.length) {
+			if (pos == limit) {
+				limit = in.read(buffer);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					eof = true;
+					break;
+				}
+			}
+			byte b = buffer[pos++];
+
+			switch (state) {
+			case LINE_START:
+				if (b == '\n' || b == '\r') {
+					break;
+				}
+				if (format == 0) {
+					format = (b == '@') ? '@' : '>';
+				}
+				if (b == format) {
+					numOfReads++;
+					batch[n++] = SEPARATOR;
+					state = HEADER;
+				}
+				else if (format == '>') {
+					batch[n++] = b;
+					state = SEQUENCE;
+				}
+				else {
+					state = SKIP; //not a fastq record, skip the line
+				}
+				break;
+			case HEADER:
+				if (b == '\n') {
+					state = (format == '@') ? SEQUENCE : LINE_START;
+				}
+				break;
+			case SEQUENCE:
+				if (b == '\n') {
+					state = (format == '@') ? PLUS : LINE_START;
+				}
+				else if (b != '\r') {
+					batch[n++] = b;
+				}
+				break;
+			case PLUS:
+				if (b == '\n') {
+					state = QUALITY;
+				}
+				break;
+			case QUALITY:
+			case SKIP:
+				if (b == '\n') {
+					state = LINE_START;
+				}
+				break;
+			}
+		}
+
+		if (n == batch.length && overlap > 0) {
+			carried = Math.min(overlap, n);
+			System.arraycopy(batch, n-carried, carry, 0, carried);
+		}
+		if (n == start && eof) {
+			return -1;
+		}
+		return n;
+	}
+
+	//number of reads (records) seen so far
+	public long getNumOfReads() {
+		return numOfReads;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
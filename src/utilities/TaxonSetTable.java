@@ -0,0 +1,127 @@
+package utilities;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * Table of the distinct taxID sets of a database. Most shared k-mers have one of a small number of
+ * taxID combinations, so each combination is stored once and a k-mer is labelled with the number (set ID)
+ * of its combination. The taxIDs of a set are only read when the results are added up per taxID.
+ * A set is identified by its taxIDs separated by spaces, in the order of the database line.
+ *
+ */
+public class TaxonSetTable {
+
+	private int [] setStarts = new int [65];  //start of each set in taxIDs, with the end of the last set
+	private int [] taxIDs = new int [64];
+	private int numSets;
+	private Map<String, Integer> setIDs;      //built when the first set is interned
+
+	public TaxonSetTable() {
+		setIDs = new HashMap<String, Integer>();
+	}
+
+	//the sets of a database file: setStarts has one more entry than the number of sets
+	public TaxonSetTable(int [] setStarts, int [] taxIDs) {
+		this.setStarts = setStarts;
+		this.taxIDs = taxIDs;
+		this.numSets = setStarts.length-1;
+	}
+
+	/*returns the set ID of the taxIDs (separated by spaces), the set is added to the table the first
+	 *time it is seen. The taxIDs are only parsed for a new set.
+	 */
+	public int intern(String ids) {
+		if (setIDs == null) {
+			indexSets();
+		}
+		Integer setID = setIDs.get(ids);
+		if (setID != null) {
+			return setID;
+		}
+		String [] idList = ids.trim().split(" +");
+		int [] set = new int [idList.length];
+		for (int i=0; i<idList.length; i++) {
+			set[i] = Integer.parseInt(idList[i]);
+		}
+		return add(ids, set, set.length);
+	}
+
+	//returns the set ID of the first numIDs taxIDs, the set is added to the table the first time it is seen
+	public int intern(int [] ids, int numIDs) {
+		if (setIDs == null) {
+			indexSets();
+		}
+		String key = getKey(ids, 0, numIDs);
+		Integer setID = setIDs.get(key);
+		if (setID != null) {
+			return setID;
+		}
+		return add(key, ids, numIDs);
+	}
+
+	public int getNumSets() {
+		return numSets;
+	}
+
+	//total number of taxIDs in all the sets
+	public int getNumTaxIDs() {
+		return setStarts[numSets];
+	}
+
+	//number of taxIDs in a set
+	public int getSetSize(int setID) {
+		return setStarts[setID+1]-setStarts[setID];
+	}
+
+	//j-th taxID of a set
+	public int getTaxID(int setID, int j) {
+		return taxIDs[setStarts[setID]+j];
+	}
+
+	//start of the set in the list of all taxIDs (getTaxIDs)
+	public int getSetStart(int setID) {
+		return setStarts[setID];
+	}
+
+	//the taxIDs of all the sets, one set after the other
+	public int [] getTaxIDs() {
+		return taxIDs;
+	}
+
+	/************** Helper methods **************/
+
+	private int add(String key, int [] set, int setSize) {
+		if (numSets+1 == setStarts.length) {
+			setStarts = Arrays.copyOf(setStarts, 2*setStarts.length);
+		}
+		int start = setStarts[numSets];
+		if (start+setSize > taxIDs.length) {
+			taxIDs = Arrays.copyOf(taxIDs, Math.max(2*taxIDs.length, start+setSize));
+		}
+		System.arraycopy(set, 0, taxIDs, start, setSize);
+		setStarts[numSets+1] = start+setSize;
+		setIDs.put(key, numSets);
+		return numSets++;
+	}
+
+	//index of the sets of a database file, so more sets can be added
+	private void indexSets() {
+		setIDs = new HashMap<String, Integer>();
+		for (int setID=0; setID<numSets; setID++) {
+			setIDs.put(getKey(taxIDs, setStarts[setID], setStarts[setID+1]), setID);
+		}
+	}
+
+	private static String getKey(int [] ids, int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=from; i<to; i++) {
+			if (i > from) {
+				sb.append(' ');
+			}
+			sb.append(ids[i]);
+		}
+		return sb.toString();
+	}
+}
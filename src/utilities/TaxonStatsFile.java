@@ -0,0 +1,188 @@
+package utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/***
+ * Statistics of the specific k-mers of a database for each taxID: the number of k-mers that belong to that
+ * taxID only and the sum of their counts. They do not change for a database, so they are computed once
+ * (when the database is built or the first time it is used) and saved in a small binary file next to the
+ * database instead of reading the whole database for every sample.
+ * The file has a header followed by the taxIDs in increasing order, each with its number of k-mers and total counts.
+ *
+ */
+public class TaxonStatsFile {
+
+	public static final String EXTENSION = ".stats";
+
+	private static final long MAGIC = 0x4469734356525354L; //"DisCVRST"
+	private static final int VERSION = 1;
+
+	private final int [] taxIDs;
+	private final int [] numKmers;
+	private final long [] totalCounts;
+
+	private TaxonStatsFile(int [] taxIDs, int [] numKmers, long [] totalCounts) {
+		this.taxIDs = taxIDs;
+		this.numKmers = numKmers;
+		this.totalCounts = totalCounts;
+	}
+
+	//computes the statistics from the lines of a text database: kmer count taxID(s) lengthOfTaxID(s)
+	public static TaxonStatsFile build(BufferedReader textDB) throws IOException {
+		LongIntHashMap ordinals = new LongIntHashMap(256); //taxID -> its index + 1
+		int [] ids = new int [64];
+		int [] kmers = new int [64];
+		long [] counts = new long [64];
+		int numTaxa = 0;
+		String line;
+		try {
+			while ((line = textDB.readLine()) != null) {
+				String [] words = line.trim().split("[ \t]");
+				if (words.length < 4 || Integer.parseInt(words[words.length-1]) != 1) {//only specific k-mers
+					continue;
+				}
+				int taxID = Integer.parseInt(words[2]);
+				int ordinal = ordinals.get(taxID)-1;
+				if (ordinal < 0) {
+					if (numTaxa == ids.length) {
+						ids = Arrays.copyOf(ids, 2*numTaxa);
+						kmers = Arrays.copyOf(kmers, 2*numTaxa);
+						counts = Arrays.copyOf(counts, 2*numTaxa);
+					}
+					ordinal = numTaxa++;
+					ids[ordinal] = taxID;
+					ordinals.put(taxID, ordinal+1);
+				}
+				kmers[ordinal]++;
+				counts[ordinal] += Integer.parseInt(words[1]);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid line in the database: "+e.getMessage());
+		}
+		return sorted(ids, kmers, counts, numTaxa);
+	}
+
+	//computes the statistics from a binary database, the k-mers are tallied by taxID set
+	public static TaxonStatsFile build(KmerDatabaseFile db) {
+		int [] setKmers = new int [db.getNumSets()];
+		long [] setCounts = new long [db.getNumSets()];
+		for (long i=0; i<db.getNumKmers(); i++) {
+			int setID = db.getSetID(i);
+			setKmers[setID]++;
+			setCounts[setID] += db.getCount(i);
+		}
+		int [] ids = new int [setKmers.length];
+		int numTaxa = 0;
+		for (int setID=0; setID<setKmers.length; setID++) {
+			if (db.getSetSize(setID) == 1 && setKmers[setID] > 0) {
+				ids[numTaxa] = db.getTaxID(setID, 0);
+				setKmers[numTaxa] = setKmers[setID];
+				setCounts[numTaxa++] = setCounts[setID];
+			}
+		}
+		//a taxID has one set of its own, but the sets are merged in case it has more
+		return sorted(ids, setKmers, setCounts, numTaxa);
+	}
+
+	/*returns the statistics saved in the file or null if there is no file or it is older than
+	 *the database (modified time of the database)
+	 */
+	public static TaxonStatsFile read(File statsFile, long dbModified) throws IOException {
+		if (!statsFile.exists() || statsFile.lastModified() < dbModified) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(statsFile)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			int numTaxa = in.readInt();
+			int [] ids = new int [numTaxa];
+			int [] kmers = new int [numTaxa];
+			long [] counts = new long [numTaxa];
+			for (int i=0; i<numTaxa; i++) {
+				ids[i] = in.readInt();
+				kmers[i] = in.readInt();
+				counts[i] = in.readLong();
+			}
+			return new TaxonStatsFile(ids, kmers, counts);
+		}
+	}
+
+	//saves the statistics, under a temporary name that is renamed at the end
+	public void write(File statsFile) throws IOException {
+		File tempFile = new File(statsFile.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(taxIDs.length);
+			for (int i=0; i<taxIDs.length; i++) {
+				out.writeInt(taxIDs[i]);
+				out.writeInt(numKmers[i]);
+				out.writeLong(totalCounts[i]);
+			}
+		}
+		statsFile.delete();
+		if (!tempFile.renameTo(statsFile)) {
+			tempFile.delete();
+			throw new IOException("Errors renaming "+tempFile);
+		}
+	}
+
+	//number of taxIDs with specific k-mers
+	public int getNumTaxa() {
+		return taxIDs.length;
+	}
+
+	public int getTaxID(int i) {
+		return taxIDs[i];
+	}
+
+	//number of specific k-mers of the i-th taxID
+	public int getNumKmers(int i) {
+		return numKmers[i];
+	}
+
+	//sum of the counts of the specific k-mers of the i-th taxID
+	public long getTotalCounts(int i) {
+		return totalCounts[i];
+	}
+
+	/************** Helper methods **************/
+
+	//orders the taxIDs, adding up the entries of the same taxID
+	private static TaxonStatsFile sorted(int [] ids, int [] kmers, long [] counts, int numTaxa) {
+		Integer [] order = new Integer [numTaxa];
+		for (int i=0; i<numTaxa; i++) {
+			order[i] = i;
+		}
+		final int [] keys = ids;
+		Arrays.sort(order, (a, b) -> Integer.compare(keys[a], keys[b]));
+
+		int [] sortedIDs = new int [numTaxa];
+		int [] sortedKmers = new int [numTaxa];
+		long [] sortedCounts = new long [numTaxa];
+		int n = 0;
+		for (int i=0; i<numTaxa; i++) {
+			int j = order[i];
+			if (n > 0 && sortedIDs[n-1] == ids[j]) {
+				sortedKmers[n-1] += kmers[j];
+				sortedCounts[n-1] += counts[j];
+				continue;
+			}
+			sortedIDs[n] = ids[j];
+			sortedKmers[n] = kmers[j];
+			sortedCounts[n++] = counts[j];
+		}
+		return new TaxonStatsFile(Arrays.copyOf(sortedIDs, n), Arrays.copyOf(sortedKmers, n), Arrays.copyOf(sortedCounts, n));
+	}
+}
@@ -0,0 +1,295 @@
+package utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Binary copy of the parts of the NCBI taxonomy (names.dmp and nodes.dmp) that are used by DisCVR:
+ * the parent, the rank and the scientific name of each taxID.
+ * It is compiled once from the dmp files, optionally keeping only some taxIDs and their ancestors
+ * (e.g. the taxIDs of a database), and then opened with memory mapping instead of parsing the dmp files.
+ * The file has a header followed by:
+ *   the taxIDs in increasing order and the parent of each of them
+ *   the start of each name in the name table (the names of the taxIDs and then the names of the ranks)
+ *   the rank of each taxID as an index in the rank names
+ *   the name table (UTF-8)
+ *
+ */
+public class TaxonomySnapshot {
+
+	public static final String EXTENSION = ".tax";
+
+	private static final long MAGIC = 0x4469734356525458L; //"DisCVRTX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int NO_RANK = 255;
+
+	private final File file;
+	private final int numTaxa;
+	private final int [] taxIDs;
+	private final int [] parents;
+	private final int [] nameStarts;  //start of each name, with the end of the last one
+	private final byte [] ranks;
+	private final String [] rankNames;
+	private final MappedByteBuffer names;
+	private final LongIntHashMap ordinals; //taxID -> its index + 1
+
+	private TaxonomySnapshot(File file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+				throw new IOException(file+" is not a taxonomy file");
+			}
+			numTaxa = header.getInt(12);
+			int numRanks = header.getInt(16);
+			int namesLength = header.getInt(20);
+
+			long offset = HEADER_SIZE;
+			long tablesLength = 4L*(2*numTaxa+numTaxa+numRanks+1)+numTaxa;
+			ByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, offset, tablesLength);
+			taxIDs = new int [numTaxa];
+			tables.asIntBuffer().get(taxIDs);
+			tables.position(4*numTaxa);
+			parents = new int [numTaxa];
+			tables.asIntBuffer().get(parents);
+			tables.position(8*numTaxa);
+			nameStarts = new int [numTaxa+numRanks+1];
+			tables.asIntBuffer().get(nameStarts);
+			tables.position(4*(2*numTaxa+nameStarts.length));
+			ranks = new byte [numTaxa];
+			tables.get(ranks);
+
+			names = channel.map(FileChannel.MapMode.READ_ONLY, offset+tablesLength, namesLength);
+			rankNames = new String [numRanks];
+			for (int r=0; r<numRanks; r++) {
+				rankNames[r] = getTableName(numTaxa+r);
+			}
+		}
+		ordinals = new LongIntHashMap(numTaxa);
+		for (int i=0; i<numTaxa; i++) {
+			ordinals.put(taxIDs[i], i+1);
+		}
+	}
+
+	public static TaxonomySnapshot open(File file) throws IOException {
+		return new TaxonomySnapshot(file);
+	}
+
+	/*compiles the names.dmp and nodes.dmp files into a taxonomy file. Only the taxIDs in keep and their
+	 *ancestors are written, or all taxIDs if keep is null. The file is written under a temporary name and
+	 *renamed at the end.
+	 */
+	public static void compile(BufferedReader namesDmp, BufferedReader nodesDmp, int [] keep, File taxonomyFile) throws IOException {
+		//parent and rank of every taxID in nodes.dmp
+		LongIntHashMap parentMap = new LongIntHashMap(1 << 16);
+		LongIntHashMap rankMap = new LongIntHashMap(1 << 16);
+		Map<String, Integer> rankCodes = new HashMap<String, Integer>();
+		List<String> rankList = new ArrayList<String>();
+		String line;
+		try {
+			while ((line = nodesDmp.readLine()) != null) {
+				//one line: taxID | parent taxID | rank | ...
+				String [] words = line.split("\t\\|\t");
+				if (words.length < 3) {
+					continue;
+				}
+				int taxID = Integer.parseInt(words[0]);
+				Integer rank = rankCodes.get(words[2]);
+				if (rank == null) {
+					if (rankList.size() == NO_RANK) {
+						throw new IOException("Too many ranks in the nodes file");
+					}
+					rank = rankList.size();
+					rankCodes.put(words[2], rank);
+					rankList.add(words[2]);
+				}
+				parentMap.put(taxID, Integer.parseInt(words[1]));
+				rankMap.put(taxID, rank+1);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid line in the nodes file: "+e.getMessage());
+		}
+
+		//the taxIDs to keep with all their ancestors
+		long [] kept;
+		if (keep == null) {
+			kept = parentMap.sortedKeys();
+		}
+		else {
+			LongIntHashMap keepMap = new LongIntHashMap(4*keep.length+16);
+			for (int taxID : keep) {
+				long id = taxID;
+				while (!keepMap.containsKey(id)) {
+					keepMap.put(id, 1);
+					if (!parentMap.containsKey(id)) {
+						break;
+					}
+					long parent = parentMap.get(id);
+					if (parent == id) {//the root is its own parent
+						break;
+					}
+					id = parent;
+				}
+			}
+			kept = keepMap.sortedKeys();
+		}
+		LongIntHashMap keptOrdinals = new LongIntHashMap(kept.length);
+		for (int i=0; i<kept.length; i++) {
+			keptOrdinals.put(kept[i], i+1);
+		}
+
+		//scientific names of the kept taxIDs
+		String [] taxNames = new String [kept.length];
+		try {
+			while ((line = namesDmp.readLine()) != null) {
+				//one line: taxID | name | unique name | name class |
+				String [] names = line.split("\t\\|\t");
+				if (names.length < 4 || !names[3].contains("scientific")) {
+					continue;
+				}
+				int ordinal = keptOrdinals.get(Integer.parseInt(names[0]));
+				if (ordinal > 0) {
+					taxNames[ordinal-1] = names[1];
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid line in the names file: "+e.getMessage());
+		}
+
+		File tempFile = new File(taxonomyFile.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+			List<byte []> nameBytes = new ArrayList<byte []>(kept.length+rankList.size());
+			for (String name : taxNames) {
+				nameBytes.add(name == null ? null : name.getBytes(StandardCharsets.UTF_8));
+			}
+			for (String rank : rankList) {
+				nameBytes.add(rank.getBytes(StandardCharsets.UTF_8));
+			}
+			int namesLength = 0;
+			for (byte [] name : nameBytes) {
+				namesLength += (name == null) ? 0 : name.length;
+			}
+
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(kept.length);
+			out.writeInt(rankList.size());
+			out.writeInt(namesLength);
+			out.write(new byte [HEADER_SIZE-24]);
+			for (long taxID : kept) {
+				out.writeInt((int)taxID);
+			}
+			for (long taxID : kept) {
+				out.writeInt(parentMap.containsKey(taxID) ? parentMap.get(taxID) : -1);
+			}
+			int start = 0;
+			for (byte [] name : nameBytes) {
+				//a taxID without a scientific name is written with a negative start
+				out.writeInt(name == null ? -1-start : start);
+				start += (name == null) ? 0 : name.length;
+			}
+			out.writeInt(start);
+			for (long taxID : kept) {
+				out.writeByte(rankMap.containsKey(taxID) ? rankMap.get(taxID)-1 : NO_RANK);
+			}
+			for (byte [] name : nameBytes) {
+				if (name != null) {
+					out.write(name);
+				}
+			}
+		}
+		taxonomyFile.delete();
+		if (!tempFile.renameTo(taxonomyFile)) {
+			tempFile.delete();
+			throw new IOException("Errors renaming "+tempFile);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getNumTaxa() {
+		return numTaxa;
+	}
+
+	public boolean contains(int taxID) {
+		return ordinals.get(taxID) > 0;
+	}
+
+	//scientific name of the taxID or null if it is not known
+	public String getName(int taxID) {
+		int ordinal = ordinals.get(taxID)-1;
+		return (ordinal < 0) ? null : getTableName(ordinal);
+	}
+
+	//rank of the taxID or null if it is not known
+	public String getRank(int taxID) {
+		int ordinal = ordinals.get(taxID)-1;
+		if (ordinal < 0 || (ranks[ordinal] & 0xff) == NO_RANK) {
+			return null;
+		}
+		return rankNames[ranks[ordinal] & 0xff];
+	}
+
+	//parent of the taxID or -1 if it is not known
+	public int getParent(int taxID) {
+		int ordinal = ordinals.get(taxID)-1;
+		return (ordinal < 0) ? -1 : parents[ordinal];
+	}
+
+	/*the ancestors of the taxID from its parent up to the root (taxID 1),
+	 *returns null if the taxID is not known
+	 */
+	public ArrayList<Integer> getLineage(int taxID) {
+		int parent = getParent(taxID);
+		if (parent < 0) {
+			return null;
+		}
+		ArrayList<Integer> lineage = new ArrayList<Integer>();
+		lineage.add(parent);
+		while (parent > 1 && lineage.size() <= numTaxa) {//The top parent in the tree is 1
+			parent = getParent(parent);
+			if (parent < 0) {
+				break;
+			}
+			lineage.add(parent);
+		}
+		return lineage;
+	}
+
+	/************** Helper methods **************/
+
+	//name at position i in the name table
+	private String getTableName(int i) {
+		int start = nameStarts[i];
+		if (start < 0) {
+			return null;
+		}
+		int end = nameStarts[i+1];
+		if (end < 0) {
+			end = -1-end;
+		}
+		byte [] bytes = new byte [end-start];
+		for (int j=0; j<bytes.length; j++) {
+			bytes[j] = names.get(start+j);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}